@@ -0,0 +1,94 @@
+package example;
+
+import recorder.common.MediaType;
+import recorder.engine.MotionVectorDetector;
+import recorder.engine.OpencvMotionDetector;
+import recorder.record.triggers.MotionDetector;
+import recorder.sampler.Sample;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compares CPU time and results of the motion detectors on sample files,
+ * the full pixel analysis is the reference the others are checked against.
+ * CPU time is the process', so the decoder threads count, every file gets new detectors.
+ * Usage: MotionBenchmark sample.mp4...
+ */
+public class MotionBenchmark {
+
+    public static void main(String args[]) throws Exception {
+        String[] names = {"full", "fast", "vectors"};
+        /* Detectors keep a model from sample to sample, files of different cameras mustn't share one */
+        List<Supplier<MotionDetector>> detectors = Arrays.asList(
+                () -> new OpencvMotionDetector(0, 0, MotionDetector.DEFAULT_THRESHOLD_MIN, MotionDetector.DEFAULT_THRESHOLD_MAX),
+                () -> new OpencvMotionDetector(0, 0, MotionDetector.DEFAULT_THRESHOLD_MIN, MotionDetector.DEFAULT_THRESHOLD_MAX).fast(),
+                () -> new MotionVectorDetector(0, 0, MotionDetector.DEFAULT_THRESHOLD_MIN, MotionDetector.DEFAULT_THRESHOLD_MAX)
+        );
+        long[] cpu = new long[detectors.size()];
+        int[] agreed = new int[detectors.size()];
+
+        /* Warm up */
+        Sample first = sample(new File(args[0]));
+        for (Supplier<MotionDetector> supplier : detectors) {
+            MotionDetector detector = supplier.get();
+            detector.check(first);
+            detector.release();
+        }
+
+        for (String arg : args) {
+            Sample sample = sample(new File(arg));
+            boolean reference = false;
+            StringBuilder line = new StringBuilder(sample.getFile().getName());
+            for (int i = 0; i < detectors.size(); i++) {
+                MotionDetector detector = detectors.get(i).get();
+                long start = getProcessCpuTime();
+                boolean triggered = detector.check(sample);
+                long spent = getProcessCpuTime() - start;
+                detector.release();
+                cpu[i] += spent;
+                if (i == 0) {
+                    reference = triggered;
+                }
+                if (triggered == reference) {
+                    agreed[i]++;
+                }
+                line.append(String.format(" %s=%b/%dms", names[i], triggered, spent / 1000000));
+            }
+            System.out.println(line);
+        }
+
+        for (int i = 0; i < detectors.size(); i++) {
+            System.out.printf("%s: %d ms CPU per sample, %.1fx faster, agrees with full on %d of %d%n",
+                    names[i],
+                    cpu[i] / args.length / 1000000,
+                    cpu[i] == 0 ? 0 : (double) cpu[0] / cpu[i],
+                    agreed[i],
+                    args.length);
+        }
+    }
+
+    /**
+     * @return In nanoseconds, all threads of the process.
+     */
+    private static long getProcessCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static Sample sample(File file) {
+        String name = file.getName();
+        return new Sample(
+                "bench/1.0",
+                new Date(),
+                name.substring(name.lastIndexOf('.') + 1),
+                file,
+                60000,
+                (int) file.length(),
+                MediaType.VIDEO
+        );
+    }
+}
@@ -1,11 +1,30 @@
 package recorder;
 
 import org.apache.commons.io.FileUtils;
+import recorder.channel.Channel;
 import recorder.channel.Source;
+import recorder.channel.sources.Rtsp;
 import recorder.common.Executor;
 import recorder.common.FileNameFunstions;
+import recorder.common.Lane;
 import recorder.common.MediaConverter;
 import recorder.common.MediaType;
+import recorder.common.Threads;
+import recorder.engine.FfmpegSampleDecoder;
+import recorder.engine.FfmpegSamplerEngine;
+import recorder.engine.live_analyzer.LiveAnalyzer;
+import recorder.engine.stream_chunker.HlsPublisher;
+import recorder.engine.stream_chunker.SegmentFormat;
+import recorder.engine.stream_chunker.SegmentWriter;
+import recorder.engine.stream_chunker.segment_formats.FragmentedMp4;
+import recorder.engine.stream_hub.PacketActivityEstimator;
+import recorder.engine.stream_hub.PreEventBuffer;
+import recorder.engine.stream_hub.StreamHub;
+import recorder.record.SampleDecoder;
+import recorder.record.Sidecars;
+import recorder.record.StreamingTrigger;
+import recorder.record.Trigger;
+import recorder.sampler.Sample;
 
 import java.io.File;
 import java.io.IOException;
@@ -13,11 +32,13 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,10 +51,23 @@ public class Device extends SimpleDeviceInfo{
     private String name;
     private Transport transport;
     private final String DIR;
+    private final Channel channel;
+    /* One camera connection shared by every recording type */
+    private final StreamHub streamHub;
     private final Map<RecordInvoker.TYPE, RecordInvoker> activeRecordsMap = new ConcurrentHashMap<>();
     private final ISamplerListener samplerListener;
     private List<IRecordListener> listeners = new ArrayList<>();
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private final Lane lane = Threads.newLane();
+    private final List<Trigger> triggers = new CopyOnWriteArrayList<>();
+    /* One decode pass per sample for all sidecar triggers */
+    private final SampleDecoder sampleDecoder = new FfmpegSampleDecoder();
+    /* Recording type whose samples get the sidecars, guarded by activeRecordsMap */
+    private RecordInvoker.TYPE sidecarType = null;
+    private volatile SegmentFormat segmentFormat = new FragmentedMp4();
+    private HlsPublisher hlsPublisher = null;
+    private PreEventBuffer preEventBuffer = null;
+    private PacketActivityEstimator activityEstimator = null;
+    private LiveAnalyzer liveAnalyzer = null;
 
     private Logger LOG = Logger.getLogger(Device.class.getName());
 
@@ -43,6 +77,8 @@ public class Device extends SimpleDeviceInfo{
         DIR = targetDir;
         if (rtsp_transport != null && rtsp_transport.equalsIgnoreCase("TCP")) transport = Transport.TCP;
         else transport = Transport.UDP;
+        channel = new Channel(new Rtsp(getMEDIA_TYPE(), getsourceRtsp()), getAUDIO_SRC(), transport);
+        streamHub = new StreamHub(FfmpegSamplerEngine.createGrabberSupplier(channel));
 
         samplerListener = new ISamplerListener() {
             @Override
@@ -66,15 +102,39 @@ public class Device extends SimpleDeviceInfo{
 
                 if (files != null) {
                     for (File file : files) {
+                        String fileName = file.getName();
+                        if (Sidecars.isSidecar(fileName)) {
+                            /* Moved with their segment, orphans are deleted below */
+                            continue;
+                        }
+                        boolean partial = fileName.endsWith(SegmentWriter.PART_SUFFIX);
+                        if (partial) {
+                            /* Segment of this type cut short by the stop */
+                            fileName = fileName.substring(0, fileName.length() - SegmentWriter.PART_SUFFIX.length());
+                        }
                         Path VIDEO_AVI = Paths.get(file.getAbsolutePath());
                         String pattern = "yyyy-MM-dd";
                         SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
-                        String date = simpleDateFormat.format(Long.valueOf(FileNameFunstions.withoutExtension(file.getName()))/1000);
+                        String date = simpleDateFormat.format(Long.valueOf(FileNameFunstions.withoutExtension(fileName))/1000);
                         File deviceDir = new File(DIR+"\\"+date+"\\"+name);
                         if (!deviceDir.exists()) deviceDir.mkdirs();
-                        Path OUTPUT_MP4 = Paths.get(deviceDir.getAbsolutePath(), ("Camera-"+name+"_"+FileNameFunstions.withoutExtension(file.getName())+"_"+type) + ".mp4");
+                        String extension = FileNameFunstions.extension(fileName);
+                        /* Any known format, the device may have switched since the segment was written */
+                        SegmentFormat format = SegmentFormat.forExtension(extension);
+                        /* A partial segment of a format that needs its trailer is remuxed to rebuild the index */
+                        boolean copiedSegment = format != null && (!partial || format.isCrashTolerant());
+                        Path OUTPUT_MP4 = Paths.get(deviceDir.getAbsolutePath(), ("Camera-"+name+"_"+FileNameFunstions.withoutExtension(fileName)+"_"+type) + "." + (copiedSegment ? extension : "mp4"));
                         /* Convert the file iff ( !outputFileExist) & (inputFile.length > 8 Kb --> so the file isn't corrupt) */
                         if (!OUTPUT_MP4.toFile().exists()  && file.length() > 8192) {
+                            if (copiedSegment) {
+                                try {
+                                    SegmentWriter.moveAtomically(file, OUTPUT_MP4.toFile());
+                                    Sidecars.move(file, OUTPUT_MP4.toFile());
+                                } catch (IOException e) {
+                                    LOG.log(Level.WARNING, String.format("Can't move leftover segment \"%s\".", file.getAbsolutePath()), e);
+                                }
+                                continue;
+                            }
                             MediaConverter mediaConverter = new MediaConverter();
                             try {
                                 mediaConverter.convertToMp4(VIDEO_AVI,OUTPUT_MP4);
@@ -90,6 +150,13 @@ public class Device extends SimpleDeviceInfo{
                             }
                         }
                     }
+                    for (File file : files) {
+                        if (Sidecars.isSidecar(file.getName()) && file.exists()) {
+                            if (!file.delete()) {
+                                LOG.log(Level.WARNING, "Can't delete leftover sidecar \"{0}\".", file.getAbsolutePath());
+                            }
+                        }
+                    }
                 }
             }
 
@@ -130,7 +197,7 @@ public class Device extends SimpleDeviceInfo{
 
     public void stopAllRecordings() {
         synchronized (activeRecordsMap) {
-            executorService.submit(() -> {
+            lane.execute(() -> {
                 activeRecordsMap.entrySet().parallelStream().forEach(entry -> {
                     try {
                         entry.getValue().stopSamplerEngine();
@@ -141,10 +208,47 @@ public class Device extends SimpleDeviceInfo{
                         activeRecordsMap.remove(entry.getKey());
                     }
                 });
+                /* Models of the camera are kept while it records, the device is stopped now */
+                triggers.forEach(Trigger::release);
             });
         }
     }
 
+    /**
+     * Registers a trigger analyzing this camera, so the state it keeps between samples
+     * is released by {@link #stopAllRecordings()}. Triggers with {@link Trigger#hasSidecar() sidecars}
+     * write them for the recorded segments before they're moved into place, see {@link #writeSidecars(Sample, RecordInvoker.TYPE)}.
+     */
+    public void addTrigger(Trigger trigger) {
+        Objects.requireNonNull(trigger);
+        triggers.add(trigger);
+    }
+
+    public void removeTrigger(Trigger trigger) {
+        triggers.remove(trigger);
+    }
+
+    public List<Trigger> getTriggers() {
+        return Collections.unmodifiableList(triggers);
+    }
+
+    /**
+     * Recording types running at the same time record the same footage, so the sidecars are written from
+     * the samples of one of them only: it's decoded once and the triggers see a single timeline.
+     * Another type takes over once it stops. Segments of the other types have no sidecars.
+     */
+    void writeSidecars(Sample sample, RecordInvoker.TYPE type) {
+        synchronized (activeRecordsMap) {
+            if (sidecarType != type) {
+                if (sidecarType != null && activeRecordsMap.containsKey(sidecarType) || !activeRecordsMap.containsKey(type)) {
+                    return;
+                }
+                sidecarType = type;
+            }
+        }
+        Sidecars.write(sample, triggers, sampleDecoder);
+    }
+
     public List<RecordInvoker.TYPE> getActiveRecordList() {
         synchronized (activeRecordsMap) {
             return new ArrayList<>(activeRecordsMap.keySet());
@@ -153,7 +257,11 @@ public class Device extends SimpleDeviceInfo{
 
     /* Factory Method to return new recorder.RecordInvoker*/
     private RecordInvoker initRecording (RecordInvoker.TYPE type) {
-        File file = new File("cache/"+name);
+        /*
+         * Under the target dir, so finished segments are moved into place by a rename.
+         * One dir per type, the leftover sweep at its stop mustn't touch segments other types are still writing.
+         */
+        File file = new File(DIR, "cache" + File.separator + name + File.separator + type);
         if (!file.exists()) {
             file.mkdirs();
         }
@@ -174,7 +282,7 @@ public class Device extends SimpleDeviceInfo{
                 } else {
                     RecordInvoker recordInvoker = initRecording(type);
                     activeRecordsMap.put(type, recordInvoker);
-                    executorService.submit(() -> {
+                    lane.execute(() -> {
                         try {
                             recordInvoker.startSamplerEngine();
                         } catch (Exception e) {
@@ -186,7 +294,7 @@ public class Device extends SimpleDeviceInfo{
             }
             else {
                 if (activeRecordsMap.containsKey(type)) {
-                    executorService.submit(() -> activeRecordsMap.get(type).stopSamplerEngine());
+                    lane.execute(() -> activeRecordsMap.get(type).stopSamplerEngine());
                     return true;
                 } else {
                     return false;
@@ -195,6 +303,195 @@ public class Device extends SimpleDeviceInfo{
         }
     }
 
+    /**
+     * Publishes a rolling HLS playlist from the shared camera connection,
+     * so live viewers are served from files without extra camera sessions.
+     */
+    public synchronized void startHls(File hlsDir) {
+        startHls(hlsDir, HlsPublisher.DEFAULT_SEGMENT_DURATION, HlsPublisher.DEFAULT_PLAYLIST_SIZE);
+    }
+
+    /**
+     * @param segmentDuration In microseconds.
+     * @param playlistSize    Number of segments in the playlist window.
+     */
+    public synchronized void startHls(File hlsDir, long segmentDuration, int playlistSize) {
+        if (hlsPublisher != null && hlsPublisher.isExecuting()) {
+            throw new IllegalStateException("HLS is already published.");
+        }
+        hlsPublisher = new HlsPublisher(streamHub::newGrabber, hlsDir, segmentDuration, playlistSize);
+        hlsPublisher.getListeners().add(new Executor.Listener() {
+            @Override
+            public void onCrash(Executor executor) {
+                LOG.log(Level.WARNING, "++ " + name + " ++ HLS publisher crashed due to " + executor.getLastCrashException().getMessage());
+            }
+        });
+        hlsPublisher.startPacket();
+    }
+
+    public synchronized void stopHls() {
+        if (hlsPublisher != null) {
+            hlsPublisher.stopAndWaitForInfinitely();
+            hlsPublisher = null;
+        }
+    }
+
+    public synchronized boolean isHlsPublishing() {
+        return hlsPublisher != null && hlsPublisher.isExecuting();
+    }
+
+    /**
+     * Keeps the last seconds of the camera in memory, MOTION and ALARM recordings start with them.
+     * Holds the camera connection open while enabled.
+     *
+     * @param duration In milliseconds.
+     */
+    public synchronized void enablePreEventBuffer(long duration) throws Exception {
+        disablePreEventBuffer();
+        PreEventBuffer buffer = new PreEventBuffer(streamHub, duration * 1000);
+        streamHub.subscribe(buffer);
+        preEventBuffer = buffer;
+    }
+
+    public synchronized void disablePreEventBuffer() {
+        if (preEventBuffer != null) {
+            streamHub.unsubscribe(preEventBuffer);
+            preEventBuffer.clear();
+            preEventBuffer = null;
+        }
+    }
+
+    /**
+     * @return null if disabled.
+     */
+    public synchronized PreEventBuffer getPreEventBuffer() {
+        return preEventBuffer;
+    }
+
+    /**
+     * Scores scene activity from packet sizes, see {@link recorder.engine.OpencvMotionDetector#setActivityEstimator(PacketActivityEstimator, float)}.
+     * Holds the camera connection open while enabled.
+     */
+    public synchronized PacketActivityEstimator enableActivityEstimator() throws Exception {
+        if (activityEstimator == null) {
+            PacketActivityEstimator estimator = new PacketActivityEstimator(streamHub);
+            streamHub.subscribe(estimator);
+            activityEstimator = estimator;
+        }
+        return activityEstimator;
+    }
+
+    public synchronized void disableActivityEstimator() {
+        if (activityEstimator != null) {
+            streamHub.unsubscribe(activityEstimator);
+            activityEstimator = null;
+        }
+    }
+
+    /**
+     * @return null if disabled.
+     */
+    public synchronized PacketActivityEstimator getActivityEstimator() {
+        return activityEstimator;
+    }
+
+    /**
+     * Evaluates the triggers on the live stream and records while they fire,
+     * starting within a second of activity. Combine with {@link #enablePreEventBuffer(long)} for pre-roll.
+     * A lost stream ends the recording and the analysis resumes once the camera is back.
+     * A recording of the type already running when they fire, e.g. started manually, is never stopped by them.
+     *
+     * @param durationAfter In milliseconds, the recording stops after this long without activity.
+     */
+    public synchronized void startLiveTriggers(RecordInvoker.TYPE type, long durationAfter, StreamingTrigger... triggers) {
+        Objects.requireNonNull(type);
+        if (durationAfter < 0) {
+            throw new IllegalArgumentException("Duration after is negative.");
+        }
+        if (liveAnalyzer != null && liveAnalyzer.isExecuting()) {
+            throw new IllegalStateException("Live triggers are already started.");
+        }
+        LiveAnalyzer.Listener listener = new LiveAnalyzer.Listener() {
+
+            /**
+             * Wall clock in microseconds, -1 if the triggers are quiet.
+             */
+            private long lastActivity = -1;
+            /**
+             * The recording was started by the triggers, one already running is left to whoever started it.
+             */
+            private boolean started = false;
+
+            @Override
+            public void onActivity(StreamingTrigger trigger, long timestamp) {
+                if (lastActivity == -1) {
+                    LOG.log(Level.INFO, "++ " + name + " ++ Live trigger " + trigger.getClass().getSimpleName() + " fired.");
+                    try {
+                        started = triggerRecording(true, type);
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, "++ " + name + " ++ Can't trigger recording.", e);
+                    }
+                }
+                lastActivity = timestamp;
+            }
+
+            @Override
+            public void onAnalyzed(long timestamp) {
+                if (lastActivity != -1 && timestamp - lastActivity > durationAfter * 1000) {
+                    lastActivity = -1;
+                    stopRecording();
+                }
+            }
+
+            /**
+             * Nothing would end the recording the triggers started while the stream is away.
+             */
+            @Override
+            public void onStreamLost() {
+                if (lastActivity != -1) {
+                    lastActivity = -1;
+                    stopRecording();
+                }
+            }
+
+            private void stopRecording() {
+                if (!started) {
+                    return;
+                }
+                started = false;
+                try {
+                    triggerRecording(false, type);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "++ " + name + " ++ Can't stop triggered recording.", e);
+                }
+            }
+        };
+        liveAnalyzer = new LiveAnalyzer(streamHub::newGrabber, listener);
+        liveAnalyzer.getTriggers().addAll(Arrays.asList(triggers));
+        liveAnalyzer.getListeners().add(new Executor.Listener() {
+            @Override
+            public void onCrash(Executor executor) {
+                LOG.log(Level.WARNING, "++ " + name + " ++ Live analyzer crashed due to " + executor.getLastCrashException().getMessage());
+                listener.onStreamLost();
+            }
+        });
+        liveAnalyzer.startPacket();
+    }
+
+    /**
+     * Stops evaluating live triggers, a recording they started goes on until stopped.
+     */
+    public synchronized void stopLiveTriggers() {
+        if (liveAnalyzer != null) {
+            liveAnalyzer.stopAndWaitForInfinitely();
+            liveAnalyzer = null;
+        }
+    }
+
+    public synchronized boolean isLiveAnalyzing() {
+        return liveAnalyzer != null && liveAnalyzer.isExecuting();
+    }
+
     public String getName() {
         return name;
     }
@@ -203,6 +500,26 @@ public class Device extends SimpleDeviceInfo{
         return transport;
     }
 
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public StreamHub getStreamHub() {
+        return streamHub;
+    }
+
+    public SegmentFormat getSegmentFormat() {
+        return segmentFormat;
+    }
+
+    /**
+     * Container of the recorded segments, applied to recordings started afterwards.
+     */
+    public void setSegmentFormat(SegmentFormat segmentFormat) {
+        Objects.requireNonNull(segmentFormat);
+        this.segmentFormat = segmentFormat;
+    }
+
     public ISamplerListener getSamplerListener() {
         return samplerListener;
     }
@@ -1,17 +1,20 @@
 package recorder;
 
 import org.bytedeco.javacv.FrameGrabber;
-import recorder.channel.Channel;
-import recorder.channel.sources.Rtsp;
 import recorder.common.Executor;
 import recorder.common.FileNameFunstions;
 import recorder.common.MediaConverter;
 import recorder.engine.FfmpegProbeFactory;
 import recorder.engine.FfmpegSamplerEngine;
+import recorder.engine.stream_chunker.SegmentFormat;
+import recorder.engine.stream_chunker.SegmentWriter;
+import recorder.engine.stream_hub.PreEventBuffer;
+import recorder.record.Sidecars;
 import recorder.sampler.SampleFactory;
 import recorder.sampler.Sampler;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
@@ -51,9 +54,14 @@ public class RecordInvoker {
             }
         }
 
-        Rtsp sampleRtsp = new Rtsp(deviceInfo.getMEDIA_TYPE(),deviceInfo.getsourceRtsp());
-        Channel channel = new Channel(sampleRtsp,deviceInfo.getAUDIO_SRC(),deviceInfo.getRtspTransport());
-        FfmpegSamplerEngine ffmpegSamplerEngine = new FfmpegSamplerEngine(channel, this.file);
+        PreEventBuffer preEventBuffer = null;
+        if (this.type == TYPE.MOTION || this.type == TYPE.ALARM) {
+            /* Triggered recordings begin with the footage buffered in memory before the trigger */
+            preEventBuffer = deviceInfo.getPreEventBuffer();
+        }
+        FfmpegSamplerEngine ffmpegSamplerEngine = new FfmpegSamplerEngine(deviceInfo.getChannel(), this.file, deviceInfo.getStreamHub(), preEventBuffer);
+        SegmentFormat segmentFormat = deviceInfo.getSegmentFormat();
+        ffmpegSamplerEngine.setSegmentFormat(segmentFormat);
         FfmpegProbeFactory ffmpegProbeFactory = new FfmpegProbeFactory();
         sampler = new Sampler(ffmpegSamplerEngine,new SampleFactory(ffmpegProbeFactory));
 
@@ -80,23 +88,40 @@ public class RecordInvoker {
         });
 
         sampler.setSampleHandler(sample -> {
+            /* Sidecars of the segment are written before it's moved, with the triggers registered at the device */
+            deviceInfo.writeSidecars(sample, this.type);
+            String pattern = "yyyy-MM-dd";
+            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
+            String date = simpleDateFormat.format(sample.getBegin());
+            File dir = new File(deviceInfo.getDIR()+"\\"+date+"\\"+deviceInfo.getName());
+            if (!dir.exists()) dir.mkdirs();
+            String outputName = "Camera+"+deviceInfo.getName()+"_"+FileNameFunstions.withoutExtension(sample.getFile().getName())+"_"+this.type;
+            Path OUTPUT_MP4 = Paths.get(dir.getAbsolutePath(), outputName + ".mp4");
+            if (segmentFormat.getExtension().equals(sample.getExtension())) {
+                /* Stream copy segments are already playable, so they are only renamed into place */
+                Path OUTPUT_SEGMENT = Paths.get(dir.getAbsolutePath(), outputName + "." + segmentFormat.getExtension());
+                if (!OUTPUT_SEGMENT.toFile().exists()) {
+                    try {
+                        SegmentWriter.moveAtomically(sample.getFile(), OUTPUT_SEGMENT.toFile());
+                        Sidecars.move(sample.getFile(), OUTPUT_SEGMENT.toFile());
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Couldn't move the sample file", e);
+                    }
+                }
+                return;
+            }
             /*
              * temporary  JUGGAD for making playback compatible mp4
              *  TODO to be replaced with future javacv version 1.4.2 + fixing ffmpegRecorder (if Recorder bug is fixed)
              */
                 LOG.log(Level.FINER, " Initiating  MUXXer");
             Path VIDEO_AVI = Paths.get(sample.getFile().getAbsolutePath());
-            String pattern = "yyyy-MM-dd";
-            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
-            String date = simpleDateFormat.format(sample.getBegin());
-            File dir = new File(deviceInfo.getDIR()+"\\"+date+"\\"+deviceInfo.getName());
-            if (!dir.exists()) dir.mkdirs();
-            Path OUTPUT_MP4 = Paths.get(dir.getAbsolutePath(), ("Camera+"+deviceInfo.getName()+"_"+FileNameFunstions.withoutExtension(sample.getFile().getName())+"_"+this.type) + ".mp4");
 //            Future pathFuture= workerExecutor.submit(() -> {
             if (!OUTPUT_MP4.toFile().exists()) {
                 try {
                     MediaConverter mediaConverter = new MediaConverter();
                     mediaConverter.convertToMp4(VIDEO_AVI,OUTPUT_MP4);
+                    Sidecars.move(sample.getFile(), OUTPUT_MP4.toFile());
                 } catch (Exception e) {
                     e.printStackTrace();
                 }finally {
@@ -104,6 +129,7 @@ public class RecordInvoker {
                     if (!sample.getFile().delete()) {
                         LOG.log(Level.WARNING,"Couldn't delete the raw sample file");
                     }
+                    Sidecars.delete(sample.getFile());
                 }
             }
         });
@@ -3,7 +3,8 @@ package recorder.common;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,76 +50,98 @@ public abstract class Executor {
         }
     }
 
-    private Thread thread = null;
+    /**
+     * Lifecycle of an executor. STOPPED and CRASHED executors may be started again.
+     */
+    public static enum State {
+        NEW, STARTING, RUNNING, STOPPING, STOPPED, CRASHED;
+
+        public boolean isActive() {
+            return this == STARTING || this == RUNNING || this == STOPPING;
+        }
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+    private volatile Thread thread = null;
     private final Set<Listener> listeners = Collections.synchronizedSet(new HashSet<>());
-    private Exception lastCrashException = null;
-    private volatile boolean stopFlag = false;
-    private final Object sleepSync = new Object();
+    private volatile Exception lastCrashException = null;
     /**
-     * This lock needs for ordering invocations of start() method and others.
+     * Read without locking on every iteration of run loops, see {@link #isStoping()}.
      */
-    private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private volatile boolean stopFlag = false;
+    private final Object sleepSync = new Object();
 
     public abstract void run() throws Exception;
     public abstract void runPacket() throws Exception;
 
     public final void start() {
-        readWriteLock.writeLock().lock();
-        try {
-            if (isExecuting()) {
-                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor started and not stopped yet.");
-                throw new RuntimeException("Executor started and not stopped yet.");
-            }
+        launch(false);
+    }
 
-            stopFlag = false;
-            thread = new Thread(() -> {
-                try {
-                    Logger.getLogger(this.getClass().getName()).log(Level.FINER, String.format("Executor started. Thread \"%s\".", thread.getName()));
-                    runListeners(Listener.Event.START);
-                    run();
-                    runListeners(Listener.Event.STOP);
-                    Logger.getLogger(this.getClass().getName()).log(Level.FINER, "Executor stopped.");
-                } catch (Exception e) {
-                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor crashed.", e);
-                    lastCrashException = e;
-                    runListeners(Listener.Event.CRASH);
+    public final void startPacket() {
+        launch(true);
+    }
+
+    private void launch(boolean packet) {
+        /*
+         *  The transition and the reset of the stop flag are atomic against stop(), so a stop pending on a running
+         *  executor isn't cleared by a rejected start and a stop racing this start is not lost.
+         */
+        synchronized (sleepSync) {
+            State current = state.get();
+            while (true) {
+                if (current.isActive()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor started and not stopped yet.");
+                    throw new RuntimeException("Executor started and not stopped yet.");
                 }
-            });
+                if (state.compareAndSet(current, State.STARTING)) {
+                    break;
+                }
+                current = state.get();
+            }
+            stopFlag = false;
+        }
+
+        Thread newThread;
+        try {
+            newThread = getThreadFactory().newThread(() -> execute(packet));
             String executorName = getName();
-            thread.setName(thread.getName() + " / executor thread" + ((executorName == null) ? "" : " / " + executorName));
-            thread.start();
-        } finally {
-            readWriteLock.writeLock().unlock();
+            newThread.setName(newThread.getName() + " / executor thread" + ((executorName == null) ? "" : " / " + executorName));
+            thread = newThread;
+            newThread.start();
+        } catch (RuntimeException e) {
+            thread = null;
+            state.set(State.STOPPED);
+            throw e;
         }
     }
 
-    public final void startPacket() {
-        readWriteLock.writeLock().lock();
+    private void execute(boolean packet) {
+        state.compareAndSet(State.STARTING, State.RUNNING);
+        // Set in finally, so an Error from the loop doesn't leave the executor active forever.
+        State terminal = State.CRASHED;
         try {
-            if (isExecuting()) {
-                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor started and not stopped yet.");
-                throw new RuntimeException("Executor started and not stopped yet.");
+            Logger.getLogger(this.getClass().getName()).log(Level.FINER, String.format("Executor started. Thread \"%s\".", Thread.currentThread().getName()));
+            runListeners(Listener.Event.START);
+            if (packet) {
+                runPacket();
+            } else {
+                run();
             }
-
-            stopFlag = false;
-            thread = new Thread(() -> {
-                try {
-                    Logger.getLogger(this.getClass().getName()).log(Level.FINER, String.format("Executor started. Thread \"%s\".", thread.getName()));
-                    runListeners(Listener.Event.START);
-                    runPacket();
-                    runListeners(Listener.Event.STOP);
-                    Logger.getLogger(this.getClass().getName()).log(Level.FINER, "Executor stopped.");
-                } catch (Exception e) {
-                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor crashed.", e);
-                    lastCrashException = e;
-                    runListeners(Listener.Event.CRASH);
-                }
-            });
-            String executorName = getName();
-            thread.setName(thread.getName() + " / executor thread" + ((executorName == null) ? "" : " / " + executorName));
-            thread.start();
+            runListeners(Listener.Event.STOP);
+            Logger.getLogger(this.getClass().getName()).log(Level.FINER, "Executor stopped.");
+            terminal = State.STOPPED;
+        } catch (Exception e) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor crashed.", e);
+            lastCrashException = e;
+            runListeners(Listener.Event.CRASH);
+        } catch (Error e) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Executor crashed.", e);
+            lastCrashException = new RuntimeException("Executor thread error.", e);
+            runListeners(Listener.Event.CRASH);
+            throw e;
         } finally {
-            readWriteLock.writeLock().unlock();
+            state.set(terminal);
         }
     }
 
@@ -149,125 +172,89 @@ public abstract class Executor {
     }
 
     public final void stop(boolean interrupt) {
-        readWriteLock.readLock().lock();
-        try {
-            synchronized (sleepSync) {
+        State current;
+        synchronized (sleepSync) {
+            current = state.get();
+            while ((current == State.STARTING || current == State.RUNNING)
+                    && !state.compareAndSet(current, State.STOPPING)) {
+                current = state.get();
+            }
+            // Only the run in progress is stopped, the next start begins with a lowered flag.
+            if (current.isActive()) {
                 stopFlag = true;
-                if (interrupt && isExecuting()) {
-                    thread.interrupt();
-                }
-                sleepSync.notify();
             }
-        } finally {
-            readWriteLock.readLock().unlock();
+            sleepSync.notify();
+        }
+        if (interrupt && current.isActive()) {
+            Thread executorThread = thread;
+            if (executorThread != null) {
+                executorThread.interrupt();
+            }
         }
         runListeners(Listener.Event.STOPPING);
     }
 
+    /**
+     * One volatile read, cheap enough for per-packet loops.
+     */
     protected final boolean isStoping() {
-        readWriteLock.readLock().lock();
-        try {
-            return isExecuting() && (thread.isInterrupted() || stopFlag);
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        return stopFlag;
     }
 
     public final boolean isExecuting() {
-        readWriteLock.readLock().lock();
-        try {
-            return thread != null && thread.isAlive();
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        return state.get().isActive();
+    }
+
+    public final State getState() {
+        return state.get();
     }
 
     protected final void sleep(long millis) throws InterruptedException {
-        readWriteLock.readLock().lock();
-        try {
-            if (thread != Thread.currentThread()) {
-                return;
-            }
-            synchronized (sleepSync) {
-                if (!isStoping()) {
-                    sleepSync.wait(millis);
-                }
+        if (thread != Thread.currentThread()) {
+            return;
+        }
+        synchronized (sleepSync) {
+            if (!stopFlag) {
+                sleepSync.wait(millis);
             }
-        } finally {
-            readWriteLock.readLock().unlock();
         }
     }
 
     public final void waitFor() throws InterruptedException {
-        readWriteLock.readLock().lock();
-        try {
-            if (thread != null) {
-                thread.join();
-            }
-        } finally {
-            readWriteLock.readLock().unlock();
+        Thread executorThread = thread;
+        if (executorThread != null) {
+            executorThread.join();
         }
     }
 
     public final void stopAndWaitFor() throws InterruptedException {
-        readWriteLock.readLock().lock();
-        try {
-            stop();
-            waitFor();
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        stop();
+        waitFor();
     }
 
     public final void waitForInfinitely() {
-        readWriteLock.readLock().lock();
-        try {
-            Logger.getLogger(this.getClass().getName()).log(Level.FINER, "Executor waitForInfinitely().");
-            if (thread != null) {
-                Executor.waitForInfinitely(thread);
-            }
-        } finally {
-            readWriteLock.readLock().unlock();
+        Logger.getLogger(this.getClass().getName()).log(Level.FINER, "Executor waitForInfinitely().");
+        Thread executorThread = thread;
+        if (executorThread != null) {
+            Executor.waitForInfinitely(executorThread);
         }
-
     }
 
     public final void stopAndWaitForInfinitely() {
-        readWriteLock.readLock().lock();
-        try {
-            stop();
-            waitForInfinitely();
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
-
+        stop();
+        waitForInfinitely();
     }
 
     public final boolean isCrashed() {
-        readWriteLock.readLock().lock();
-        try {
-            return lastCrashException != null;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        return lastCrashException != null;
     }
 
     public final Exception getLastCrashException() {
-        readWriteLock.readLock().lock();
-        try {
-            return lastCrashException;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        return lastCrashException;
     }
 
     public final void clearCrash() {
-        readWriteLock.readLock().lock();
-        try {
-            lastCrashException = null;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        lastCrashException = null;
     }
 
     public final Set<Listener> getListeners() {
@@ -278,6 +265,13 @@ public abstract class Executor {
         return "";
     }
 
+    /**
+     * Factory of the executor thread, {@link Threads#getExecutorThreadFactory()} by default.
+     */
+    protected ThreadFactory getThreadFactory() {
+        return Threads.getExecutorThreadFactory();
+    }
+
     public final static void waitForInfinitely(Thread thread) {
         StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
 
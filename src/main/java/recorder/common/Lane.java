@@ -0,0 +1,115 @@
+package recorder.common;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe.
+ *
+ * Runs its tasks one by one in submission order on a shared pool, holding at most one pool thread.
+ */
+public class Lane implements java.util.concurrent.Executor {
+
+    private static final Logger LOG = Logger.getLogger(Lane.class.getName());
+
+    private final java.util.concurrent.Executor pool;
+    /**
+     * Whether the lane goes back to the pool queue after every task.
+     */
+    private final boolean yielding;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean scheduled = false;
+
+    public Lane(java.util.concurrent.Executor pool) {
+        this(pool, false);
+    }
+
+    /**
+     * @param yielding true to run one task per pool turn, so lanes sharing a FIFO pool take turns.
+     */
+    public Lane(java.util.concurrent.Executor pool, boolean yielding) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool is null.");
+        }
+        this.pool = pool;
+        this.yielding = yielding;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task is null.");
+        }
+        synchronized (tasks) {
+            tasks.addLast(task);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        try {
+            pool.execute(this::drain);
+        } catch (RuntimeException e) {
+            synchronized (tasks) {
+                tasks.clear();
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    public int getPendingTasks() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.pollFirst();
+                    if (task == null) {
+                        scheduled = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Task of lane failed.", e);
+                }
+                if (yielding) {
+                    break;
+                }
+            }
+        } finally {
+            if (!drained) {
+                // The lane yields or an Error left the loop, the remaining tasks get a new pool turn.
+                reschedule();
+            }
+        }
+    }
+
+    private void reschedule() {
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        }
+        try {
+            pool.execute(this::drain);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Can't reschedule lane, pending tasks are dropped.", e);
+            synchronized (tasks) {
+                tasks.clear();
+                scheduled = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package recorder.common;
+
+/**
+ * FFT of real input of a fixed power of two size, computed as a complex FFT of half the size.
+ * Tables and work buffers are allocated once, a transform allocates nothing.
+ *
+ * Not thread safe.
+ */
+public class RealFft {
+
+    private final int size;
+    private final int half;
+    private final int[] reverse;
+    /**
+     * Twiddles of the half size complex FFT.
+     */
+    private final double[] cos;
+    private final double[] sin;
+    /**
+     * Twiddles of the final split, for bins 0..size/2.
+     */
+    private final double[] splitCos;
+    private final double[] splitSin;
+    private final double[] re;
+    private final double[] im;
+
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size is not a power of two of at least 4.");
+        }
+        this.size = size;
+        this.half = size / 2;
+        reverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[half / 2];
+        sin = new double[half / 2];
+        for (int i = 0; i < half / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / half);
+            sin[i] = Math.sin(2 * Math.PI * i / half);
+        }
+        splitCos = new double[half + 1];
+        splitSin = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            splitCos[k] = Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = Math.sin(2 * Math.PI * k / size);
+        }
+        re = new double[half];
+        im = new double[half];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param input Real samples, the first {@link #getSize()} are transformed.
+     * @param power Receives |X(k)|^2 for the bins k = 0..size/2, size/2 + 1 values.
+     */
+    public void powerSpectrum(float[] input, float[] power) {
+        // Even samples as real, odd ones as imaginary parts.
+        for (int i = 0; i < half; i++) {
+            int j = reverse[i];
+            re[j] = input[2 * i];
+            im[j] = input[2 * i + 1];
+        }
+        for (int length = 2; length <= half; length <<= 1) {
+            int step = half / length;
+            int middle = length / 2;
+            for (int begin = 0; begin < half; begin += length) {
+                for (int j = 0; j < middle; j++) {
+                    double wr = cos[j * step];
+                    double wi = -sin[j * step];
+                    int a = begin + j;
+                    int b = a + middle;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+        // Split into the spectra of the even and odd samples and combine them.
+        for (int k = 0; k <= half; k++) {
+            int a = k % half;
+            int b = (half - k) % half;
+            double ar = re[a];
+            double ai = im[a];
+            double br = re[b];
+            double bi = -im[b];
+            double er = (ar + br) / 2;
+            double ei = (ai + bi) / 2;
+            double or = (ai - bi) / 2;
+            double oi = -(ar - br) / 2;
+            double c = splitCos[k];
+            double s = splitSin[k];
+            double xr = er + c * or + s * oi;
+            double xi = ei + c * oi - s * or;
+            power[k] = (float) (xr * xr + xi * xi);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package recorder.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe.
+ *
+ * Execution model of the recorder: the thread factory of {@link Executor} loops and a shared bounded
+ * pool for short tasks, so the thread count doesn't grow with helper executors per camera.
+ *
+ * The mode of executor threads is read from the "recorder.threads" system property,
+ * "platform" (default) or "virtual". Virtual threads need a Java 21 runtime and fall back to platform threads.
+ * Loops blocked in native code (e.g. av_read_frame) pin the carrier of a virtual thread,
+ * so the virtual mode pays off for loops which mostly wait on Java monitors.
+ */
+public final class Threads {
+
+    public static enum Mode {
+        PLATFORM, VIRTUAL;
+    }
+
+    public final static String MODE_PROPERTY = "recorder.threads";
+    public final static String SHARED_POOL_SIZE_PROPERTY = "recorder.threads.shared";
+
+    private static final Logger LOG = Logger.getLogger(Threads.class.getName());
+    private static final ThreadFactory PLATFORM = Thread::new;
+    private static final ThreadFactory VIRTUAL = createVirtualThreadFactory();
+
+    private static volatile ThreadFactory executorThreadFactory = PLATFORM;
+    private static volatile ExecutorService sharedPool = null;
+
+    static {
+        String mode = System.getProperty(MODE_PROPERTY);
+        if (mode != null) {
+            try {
+                setMode(Mode.valueOf(mode.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                LOG.log(Level.WARNING, String.format("Unknown mode \"%s\" of property \"%s\", platform threads are used.", mode, MODE_PROPERTY), e);
+            }
+        }
+    }
+
+    private Threads() {
+    }
+
+    /**
+     * Switches the threads of executors started from now on.
+     */
+    public static void setMode(Mode mode) {
+        switch (mode) {
+            case VIRTUAL:
+                if (VIRTUAL == null) {
+                    LOG.log(Level.WARNING, "Virtual threads need Java 21, platform threads are used.");
+                    executorThreadFactory = PLATFORM;
+                } else {
+                    executorThreadFactory = VIRTUAL;
+                }
+                break;
+            default:
+                executorThreadFactory = PLATFORM;
+                break;
+        }
+    }
+
+    public static Mode getMode() {
+        return executorThreadFactory == VIRTUAL && VIRTUAL != null ? Mode.VIRTUAL : Mode.PLATFORM;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Custom factory of executor threads, e.g. with a priority or thread group.
+     */
+    public static void setExecutorThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("Thread factory is null.");
+        }
+        executorThreadFactory = threadFactory;
+    }
+
+    public static ThreadFactory getExecutorThreadFactory() {
+        return executorThreadFactory;
+    }
+
+    /**
+     * Pool for short tasks shared by all cameras, sized by the "recorder.threads.shared" system property
+     * or twice the processors. Tasks which must keep their order go through a {@link Lane}.
+     */
+    public static ExecutorService sharedPool() {
+        ExecutorService pool = sharedPool;
+        if (pool == null) {
+            synchronized (Threads.class) {
+                pool = sharedPool;
+                if (pool == null) {
+                    int size = Integer.getInteger(SHARED_POOL_SIZE_PROPERTY, Runtime.getRuntime().availableProcessors() * 2);
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                            size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonFactory("shared-pool"));
+                    executor.allowCoreThreadTimeOut(true);
+                    sharedPool = pool = executor;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return Ordered lane on the shared pool.
+     */
+    public static Lane newLane() {
+        return new Lane(sharedPool());
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger number = new AtomicInteger();
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, name + "-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Thread.ofVirtual().factory() by reflection, so the sources still build for Java 8.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
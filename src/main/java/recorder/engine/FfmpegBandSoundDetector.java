@@ -0,0 +1,251 @@
+package recorder.engine;
+
+import org.bytedeco.javacv.Frame;
+import recorder.common.MediaType;
+import recorder.common.RealFft;
+import recorder.record.FrameVisitor;
+import recorder.record.triggers.SoundDetector;
+import recorder.sampler.Sample;
+
+import java.nio.Buffer;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Fires when the sound energy within a frequency band is over the threshold, so steady noise outside the band
+ * (ventilation hum, traffic rumble) doesn't trigger recordings.
+ * The mono mix of the samples is analyzed in half overlapping windows of about 64 ms.
+ * The threshold is in dBFS of mean power, a full scale sine in the band measures -3 dBFS.
+ */
+public class FfmpegBandSoundDetector extends SoundDetector {
+
+    private static final Logger LOG = Logger.getLogger(FfmpegBandSoundDetector.class.getName());
+
+    /**
+     * In hertz.
+     */
+    public final static double VOICE_LOW = 300;
+    public final static double VOICE_HIGH = 3400;
+    public final static double HIGH_LOW = 4000;
+
+    /**
+     * In milliseconds, rounded down to a power of two samples.
+     */
+    private final static int WINDOW = 64;
+
+    private final double low;
+    private final double high;
+    /**
+     * Threshold as a mean square of 16 bit samples, so windows are compared without logarithms.
+     */
+    private final double powerThreshold;
+    /**
+     * Buffers of the last analysis, reused by the next sample of the same rate.
+     */
+    private final AtomicReference<Analysis> spare = new AtomicReference<>();
+    /**
+     * Last sample rate the band was found outside of, so it's logged once.
+     */
+    private volatile int unheardSampleRate = 0;
+
+    /**
+     * @param low  In hertz.
+     * @param high In hertz, {@link Double#POSITIVE_INFINITY} up to the Nyquist frequency.
+     */
+    public FfmpegBandSoundDetector(long durationBefore, long durationAfter, int threshold, double low, double high) {
+        super(durationBefore, durationAfter, threshold);
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("Band is empty.");
+        }
+        this.low = low;
+        this.high = high;
+        this.powerThreshold = 32768.0 * 32768.0 * Math.pow(10, threshold / 10.0);
+    }
+
+    /**
+     * Speech band, 300-3400 Hz.
+     */
+    public static FfmpegBandSoundDetector voice(long durationBefore, long durationAfter, int threshold) {
+        return new FfmpegBandSoundDetector(durationBefore, durationAfter, threshold, VOICE_LOW, VOICE_HIGH);
+    }
+
+    /**
+     * Above 4 kHz, breaking glass and alarms.
+     */
+    public static FfmpegBandSoundDetector high(long durationBefore, long durationAfter, int threshold) {
+        return new FfmpegBandSoundDetector(durationBefore, durationAfter, threshold, HIGH_LOW, Double.POSITIVE_INFINITY);
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    @Override
+    protected boolean _check(Sample sample) {
+        FrameVisitor visitor = newFrameVisitor(sample);
+        try {
+            new FfmpegSampleDecoder().decode(sample, Collections.singletonList(visitor));
+        } catch (RuntimeException e) {
+            visitor.abort();
+            throw e;
+        }
+        return visitor.finish();
+    }
+
+    @Override
+    public FrameVisitor newFrameVisitor(Sample sample) {
+        return new BandVisitor();
+    }
+
+    /**
+     * FFT, window and buffers for one sample rate.
+     */
+    private static class Analysis {
+
+        final int sampleRate;
+        final RealFft fft;
+        final float[] window;
+        /**
+         * Sum of the squared window coefficients, normalizes the band power to a mean square.
+         */
+        final double windowPower;
+        final float[] mono;
+        final float[] windowed;
+        final float[] power;
+        int filled = 0;
+
+        Analysis(int sampleRate) {
+            this.sampleRate = sampleRate;
+            int size = Math.max(4, Integer.highestOneBit(sampleRate * WINDOW / 1000));
+            fft = new RealFft(size);
+            window = new float[size];
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                // Hann
+                window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+                sum += window[i] * window[i];
+            }
+            windowPower = sum;
+            mono = new float[size];
+            windowed = new float[size];
+            power = new float[size / 2 + 1];
+        }
+    }
+
+    private class BandVisitor implements FrameVisitor {
+
+        private Analysis analysis = null;
+        private int lowBin;
+        private int highBin;
+        private boolean audible;
+        private boolean sound = false;
+
+        @Override
+        public MediaType getMediaType() {
+            return MediaType.AUDIO;
+        }
+
+        @Override
+        public boolean visit(Frame frame) {
+            if (analysis == null) {
+                start(frame.sampleRate);
+            }
+            if (!audible) {
+                return false;
+            }
+            for (Buffer buffer : frame.samples) {
+                if (!(buffer instanceof ShortBuffer)) {
+                    throw new RuntimeException("Unsupported sample format, 16 bit samples expected.");
+                }
+            }
+            // Planar frames carry a buffer per channel, packed ones interleave the channels.
+            int channels = Math.max(1, frame.audioChannels);
+            int buffers = frame.samples.length;
+            int stride = buffers == 1 ? channels : 1;
+            int perBuffer = buffers == 1 ? channels : 1;
+            ShortBuffer first = (ShortBuffer) frame.samples[0];
+            int length = (first.limit() - first.position()) / stride;
+            float[] mono = analysis.mono;
+            int size = mono.length;
+            for (int i = 0; i < length; i++) {
+                int sum = 0;
+                for (int b = 0; b < buffers; b++) {
+                    ShortBuffer samples = (ShortBuffer) frame.samples[b];
+                    int offset = samples.position() + i * stride;
+                    for (int c = 0; c < perBuffer; c++) {
+                        sum += samples.get(offset + c);
+                    }
+                }
+                mono[analysis.filled++] = (float) sum / (buffers * perBuffer);
+                if (analysis.filled == size) {
+                    if (analyze()) {
+                        sound = true;
+                        return false;
+                    }
+                    // Half overlap
+                    System.arraycopy(mono, size / 2, mono, 0, size / 2);
+                    analysis.filled = size / 2;
+                }
+            }
+            return true;
+        }
+
+        private void start(int sampleRate) {
+            Analysis reused = spare.getAndSet(null);
+            analysis = reused != null && reused.sampleRate == sampleRate ? reused : new Analysis(sampleRate);
+            analysis.filled = 0;
+            int size = analysis.fft.getSize();
+            lowBin = (int) Math.max(1, Math.ceil(low * size / sampleRate));
+            // The Nyquist bin isn't mirrored, it would be counted twice.
+            highBin = (int) Math.min(size / 2 - 1, Math.floor(Math.min(high, sampleRate / 2.0) * size / sampleRate));
+            audible = lowBin <= highBin;
+            if (!audible && unheardSampleRate != sampleRate) {
+                unheardSampleRate = sampleRate;
+                LOG.log(Level.WARNING, String.format("Band %.0f-%.0f Hz is outside of the %d Hz sample rate, it never fires.",
+                        low, high, sampleRate));
+            }
+        }
+
+        /**
+         * @return true if the band of the window is over the threshold.
+         */
+        private boolean analyze() {
+            float[] mono = analysis.mono;
+            float[] windowed = analysis.windowed;
+            float[] window = analysis.window;
+            for (int i = 0; i < mono.length; i++) {
+                windowed[i] = mono[i] * window[i];
+            }
+            analysis.fft.powerSpectrum(windowed, analysis.power);
+            double bandPower = 0;
+            for (int k = lowBin; k <= highBin; k++) {
+                bandPower += analysis.power[k];
+            }
+            // Parseval over both halves of the spectrum, per windowed sample.
+            return 2 * bandPower / (mono.length * analysis.windowPower) > powerThreshold;
+        }
+
+        @Override
+        public boolean finish() {
+            abort();
+            return sound;
+        }
+
+        @Override
+        public void abort() {
+            if (analysis != null) {
+                spare.set(analysis);
+                analysis = null;
+            }
+        }
+    }
+
+}
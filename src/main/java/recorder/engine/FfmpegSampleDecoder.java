@@ -0,0 +1,109 @@
+package recorder.engine;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import recorder.common.MediaType;
+import recorder.record.FrameVisitor;
+import recorder.record.SampleDecoder;
+import recorder.sampler.Sample;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Decodes a sample file with one grabber for all visitors.
+ */
+public class FfmpegSampleDecoder implements SampleDecoder {
+
+    private static final Logger LOG = Logger.getLogger(FfmpegSampleDecoder.class.getName());
+
+    @Override
+    public void decode(Sample sample, List<FrameVisitor> visitors) {
+        int size = visitors.size();
+        boolean[] done = new boolean[size];
+        boolean doVideo = false;
+        boolean doAudio = false;
+        /* The least any video visitor accepts */
+        FrameVisitor.FrameSkip frameSkip = FrameVisitor.FrameSkip.NON_KEY;
+        int imageWidth = -1;
+        boolean gray = true;
+        for (FrameVisitor visitor : visitors) {
+            doAudio |= MediaType.AUDIO.isCompatible(visitor.getMediaType());
+            if (MediaType.VIDEO.isCompatible(visitor.getMediaType())) {
+                doVideo = true;
+                if (visitor.getFrameSkip().ordinal() < frameSkip.ordinal()) {
+                    frameSkip = visitor.getFrameSkip();
+                }
+                if (visitor.getImageWidth() <= 0) {
+                    imageWidth = 0;
+                } else if (imageWidth != 0) {
+                    imageWidth = Math.max(imageWidth, visitor.getImageWidth());
+                }
+                gray &= visitor.isGrayAccepted();
+            }
+        }
+        if (!doVideo && !doAudio) {
+            return;
+        }
+
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(sample.getFile());
+        try {
+            if (doVideo) {
+                switch (frameSkip) {
+                    case NON_KEY:
+                        grabber.setVideoOption("skip_frame", "nokey");
+                        break;
+                    case NON_REFERENCE:
+                        grabber.setVideoOption("skip_frame", "nonref");
+                        break;
+                    default:
+                        break;
+                }
+                if (gray) {
+                    grabber.setImageMode(FrameGrabber.ImageMode.GRAY);
+                }
+            }
+            grabber.start();
+            if (doVideo && imageWidth > 0 && imageWidth < grabber.getImageWidth()) {
+                /* Scaled while converting the decoded picture, together with the gray conversion */
+                int imageHeight = Math.max(2, (int) ((long) grabber.getImageHeight() * imageWidth / grabber.getImageWidth()) & ~1);
+                grabber.setImageWidth(imageWidth);
+                grabber.setImageHeight(imageHeight);
+            }
+            int remaining = size;
+            Frame frame;
+            while (remaining > 0 && (frame = grabber.grabFrame(doAudio, doVideo, true, false)) != null) {
+                MediaType frameType;
+                if (frame.image != null) {
+                    frameType = MediaType.VIDEO;
+                } else if (frame.samples != null) {
+                    frameType = MediaType.AUDIO;
+                } else {
+                    continue;
+                }
+                for (int i = 0; i < size; i++) {
+                    if (!done[i] && frameType.isCompatible(visitors.get(i).getMediaType()) && !visitors.get(i).visit(frame)) {
+                        done[i] = true;
+                        remaining--;
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(
+                    String.format("Can't decode sample file \"%s\".", sample.getFile().getAbsolutePath()),
+                    ex
+            );
+        } finally {
+            try {
+                grabber.stop();
+                grabber.release();
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Error in FfmpegSampleDecoder on grabber stop/release.", e);
+            }
+        }
+    }
+
+}
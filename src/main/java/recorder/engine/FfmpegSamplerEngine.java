@@ -6,14 +6,18 @@ import recorder.channel.Channel;
 import recorder.channel.Source;
 import recorder.channel.sources.Rtsp;
 import recorder.common.FileNameFunstions;
+import recorder.common.Lane;
+import recorder.common.Threads;
+import recorder.engine.stream_chunker.SegmentFormat;
 import recorder.engine.stream_chunker.StreamingChunker;
 import recorder.engine.stream_chunker.simplified_grabber.*;
+import recorder.engine.stream_hub.PreEventBuffer;
+import recorder.engine.stream_hub.StreamHub;
 import recorder.sampler.SamplerEngine;
 
 import java.io.File;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Objects;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,12 +37,54 @@ public class FfmpegSamplerEngine extends SamplerEngine {
      */
     private final static int TIMEOUT = 3000000;
     private final StreamingChunker chunker;
-    private ExecutorService executorService = null;
+    /**
+     * Grabbers share packets only, see {@link #FfmpegSamplerEngine(Channel, File, StreamHub, PreEventBuffer)}.
+     */
+    private final boolean packetOnly;
+    /**
+     * Hands chunks over in order without a thread of its own.
+     */
+    private final Lane chunkLane = Threads.newLane();
 
     Logger logger = Logger.getLogger(FfmpegSamplerEngine.class.getName());
 
     public FfmpegSamplerEngine(Channel channel, File tempDir) {
+        this(channel, tempDir, createGrabberSupplier(channel));
+    }
+
+    /**
+     * @param supplier Source of grabbers supporting both frame and packet mode.
+     */
+    public FfmpegSamplerEngine(Channel channel, File tempDir, Supplier<SimplifiedGrabber> supplier) {
+        this(channel, tempDir, () -> new StreamingChunker(Objects.requireNonNull(supplier), tempDir, SAMPLE_SIZE), false);
+    }
+
+    /**
+     * Records views of a shared stream hub. The hub shares packets only, so the engine records in packet mode
+     * whichever way it's started.
+     *
+     * @param preEventBuffer Replayed at the beginning of the recording, may be null.
+     */
+    public FfmpegSamplerEngine(Channel channel, File tempDir, StreamHub streamHub, PreEventBuffer preEventBuffer) {
+        this(channel, tempDir, () -> StreamingChunker.forPackets(
+                preEventBuffer == null ? streamHub::newGrabber : () -> streamHub.newGrabber(preEventBuffer),
+                tempDir, SAMPLE_SIZE), true);
+    }
+
+    private FfmpegSamplerEngine(Channel channel, File tempDir, Supplier<StreamingChunker> chunkerSupplier, boolean packetOnly) {
         super(channel, tempDir);
+        this.packetOnly = packetOnly;
+
+        chunker = chunkerSupplier.get();
+        chunker.setChunkHandler((chunkFile) -> {
+            chunkLane.execute(() -> {
+                getRawSampleHandler().accept(chunkFile, new Date(Long.valueOf(FileNameFunstions.withoutExtension(chunkFile.getName())) / 1000));
+            });
+        });
+
+    }
+
+    public static Supplier<SimplifiedGrabber> createGrabberSupplier(Channel channel) {
         boolean sameSource = false;
         if (channel.getVideoSource() != null && channel.getAudioSource() != null
                 && getFfmpegUri(channel.getAudioSource()).equals(getFfmpegUri(channel.getVideoSource()))) {
@@ -71,21 +117,17 @@ public class FfmpegSamplerEngine extends SamplerEngine {
                 }
             }
         }
-
-        chunker = new StreamingChunker(supplier, tempDir,SAMPLE_SIZE);
-        chunker.setChunkHandler((chunkFile) -> {
-            executorService.submit(() -> {
-                getRawSampleHandler().accept(chunkFile, new Date(Long.valueOf(FileNameFunstions.withoutExtension(chunkFile.getName())) / 1000));
-            });
-        });
-
+        return supplier;
     }
 
     @Override
     public void run() {
+        if (packetOnly) {
+            runPacket();
+            return;
+        }
         try {
             LOG.log(Level.FINER, "Attempt to start recorder.sampler recorder.engine \"{0}\".", getInfo());
-            executorService = Executors.newSingleThreadExecutor();
             chunker.start();
             while (!isStoping()) {
                 if (!chunker.next()) {
@@ -100,8 +142,6 @@ public class FfmpegSamplerEngine extends SamplerEngine {
             } catch (Exception exception) {
                 LOG.log(Level.WARNING, "Can't stop chunker.", exception);
             }
-            executorService.shutdown();
-            executorService = null;
             LOG.log(Level.FINER, "Engine is stopped.");
         }
     }
@@ -110,7 +150,6 @@ public class FfmpegSamplerEngine extends SamplerEngine {
     public void runPacket() {
         try {
             LOG.log(Level.FINER, "Attempt to start recorder.sampler recorder.engine \"{0}\".", getInfo());
-            executorService = Executors.newSingleThreadExecutor();
             chunker.startPacketRecord();
             while (!isStoping()) {
                 if (!chunker.nextPacket()) {
@@ -125,20 +164,18 @@ public class FfmpegSamplerEngine extends SamplerEngine {
             } catch (Exception exception) {
                 LOG.log(Level.WARNING, "Can't stop chunker.", exception);
             }
-            executorService.shutdown();
-            executorService = null;
             LOG.log(Level.FINER, "Engine is stopped.");
         }
     }
 
-    private String getFfmpegUri(Source source) {
+    private static String getFfmpegUri(Source source) {
         if (source instanceof Rtsp) {
             return ((Rtsp) source).getUri();
         }
         throw new RuntimeException("Unsupported source device.");
     }
 
-    private FFmpegFrameGrabber getFfmpegGrabber(String source, Device.Transport transport) {
+    private static FFmpegFrameGrabber getFfmpegGrabber(String source, Device.Transport transport) {
         FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(source);
         grabber.setOption("stimeout", String.valueOf(TIMEOUT));
         String rtsp_transport;
@@ -164,6 +201,13 @@ public class FfmpegSamplerEngine extends SamplerEngine {
         return grabber;
     }
 
+    /**
+     * Container of stream copy chunks, see {@link StreamingChunker#setSegmentFormat(SegmentFormat)}.
+     */
+    public void setSegmentFormat(SegmentFormat segmentFormat) {
+        chunker.setSegmentFormat(segmentFormat);
+    }
+
     @Override
     public String getVersion() {
         return "1.0";
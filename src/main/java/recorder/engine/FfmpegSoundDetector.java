@@ -1,247 +1,246 @@
 package recorder.engine;
 
 
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
-import recorder.common.FileNameFunstions;
+import recorder.common.MediaType;
+import recorder.record.FrameVisitor;
+import recorder.record.LoudnessEnvelope;
 import recorder.record.triggers.SoundDetector;
 import recorder.sampler.Sample;
 
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.Buffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 
 
+/**
+ * Measures the decoded 16 bit samples in windows as they are grabbed, stops on the first window over the threshold
+ * unless a loudness envelope of the whole sample is written.
+ */
 public class FfmpegSoundDetector extends SoundDetector {
 
-    private static final Logger LOG = Logger.getLogger(FfmpegSoundDetector.class.getName());
+    public static enum Level {
+        /**
+         * Loudest sample of a window, fires on a single click.
+         */
+        PEAK,
+        /**
+         * Mean power of a window, fires on sound lasting a good part of it.
+         */
+        RMS
+    }
 
-    private final File tempDir;
+    /**
+     * In milliseconds.
+     */
+    public final static int DEFAULT_WINDOW = 100;
+
+    private final Level level;
+    private final int window;
+    /**
+     * Threshold as a 16 bit amplitude, so samples are compared without logarithms.
+     */
+    private final int amplitudeThreshold;
+    private final double squareThreshold;
+    private volatile boolean loudnessEnvelope = false;
+
+    public FfmpegSoundDetector(long durationBefore, long durationAfter, int threshold) {
+        this(durationBefore, durationAfter, threshold, Level.PEAK, DEFAULT_WINDOW);
+    }
 
-    public FfmpegSoundDetector(long durationBefore, long durationAfter, int threshold, File tempDir) {
+    /**
+     * @param window In milliseconds.
+     */
+    public FfmpegSoundDetector(long durationBefore, long durationAfter, int threshold, Level level, int window) {
         super(durationBefore, durationAfter, threshold);
-        if (tempDir == null) {
-            throw new IllegalArgumentException();
+        if (level == null) {
+            throw new IllegalArgumentException("Level is null.");
         }
-        if (!tempDir.exists()) {
-            throw new RuntimeException("Temp dit is not exists.");
+        if (window < 1) {
+            throw new IllegalArgumentException("Window is less than 1 ms.");
         }
-        this.tempDir = tempDir;
+        this.level = level;
+        this.window = window;
+        double amplitude = 32768 * Math.pow(10, threshold / 20.0);
+        this.amplitudeThreshold = (int) Math.floor(amplitude);
+        this.squareThreshold = amplitude * amplitude;
     }
 
-    @Override
-    protected boolean _check(Sample sample) {
-        File tempFile = new File(
-                tempDir.getAbsolutePath()
-                + File.separator
-                + FileNameFunstions.randomName()
-                + ".wav"
-        );
-
-        FFmpegFrameGrabber grabber = null;
-        FFmpegFrameRecorder recorder = null;
-        try {
-            grabber = new FFmpegFrameGrabber(sample.getFile());
-            grabber.start();
-            recorder = new FFmpegFrameRecorder(
-                    tempFile,
-                    1);
-            recorder.setFormat("wav");
-            recorder.setSampleRate(8000);
-            recorder.start();
-            Frame frame;
-            while ((frame = grabber.grabSamples()) != null) {
-                recorder.record(frame);
-            }
-        } catch (Exception ex) {
-            throw new RuntimeException("Error on export wav from sample.", ex);
-        } finally {
-            try {
-                if (grabber != null) {
-                    grabber.stop();
-                    grabber.release();
-                }
-                if (recorder != null) {
-                    recorder.stop();
-                    recorder.release();
-                }
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "Error in FfmpegSoundDetector on grabber/recorder stop/release.", e);
-            }
-        }
+    /**
+     * @deprecated Samples aren't exported to temp files anymore, use {@link #FfmpegSoundDetector(long, long, int)}.
+     */
+    @Deprecated
+    public FfmpegSoundDetector(long durationBefore, long durationAfter, int threshold, File tempDir) {
+        this(durationBefore, durationAfter, threshold);
+    }
 
-        boolean hasSound;
+    public Level getLevel() {
+        return level;
+    }
 
-        if (!tempFile.exists()) {
-            throw new RuntimeException(
-                    String.format(
-                            "Cant't export wav file for sample file \"%s\".",
-                            sample.getFile().getAbsolutePath()
-                    )
-            );
-        }
+    /**
+     * @return In milliseconds.
+     */
+    public int getWindow() {
+        return window;
+    }
 
-        try {
-            hasSound = hasSound(tempFile);
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            LOG.log(Level.FINER, "Remove temp wav file.");
-            try {
-                Files.delete(tempFile.toPath());
-            } catch (IOException e) {
-                throw new RuntimeException("Cant't remove temp wav file.", e);
-            }
-        }
+    public boolean isLoudnessEnvelope() {
+        return loudnessEnvelope;
+    }
 
-        return hasSound;
+    /**
+     * Writes a {@link LoudnessEnvelope} sidecar next to every checked sample file, computed in the same pass.
+     * The whole audio is then decoded, not only up to the first window over the threshold.
+     */
+    public void setLoudnessEnvelope(boolean loudnessEnvelope) {
+        this.loudnessEnvelope = loudnessEnvelope;
     }
 
-    private boolean hasSound(File file) {
-        double[][] decibels = readAudioDecibels(file);
-        for (double[] channelDecibels : decibels) {
-            for (double decibel : channelDecibels) {
-                if (decibel > getThreshold()) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    @Override
+    public boolean hasSidecar() {
+        return loudnessEnvelope;
     }
 
-    private static double[][] readAudioDecibels(File audioFile) {
-        // Open audio file.
-        AudioInputStream audioInputStream;
+    @Override
+    protected boolean _check(Sample sample) {
+        FrameVisitor visitor = newFrameVisitor(sample);
         try {
-            audioInputStream = AudioSystem.getAudioInputStream(
-                    new BufferedInputStream(
-                            new FileInputStream(
-                                    audioFile
-                            )
-                    )
-            );
-        } catch (UnsupportedAudioFileException ex) {
-            throw new RuntimeException(
-                    String.format("Unsupported audio file \"%s\".", audioFile.getAbsolutePath()),
-                    ex
-            );
-        } catch (IOException ex) {
-            throw new RuntimeException(
-                    String.format("Can't read data from file \"%s\".", audioFile.getAbsolutePath()),
-                    ex
-            );
+            new FfmpegSampleDecoder().decode(sample, Collections.singletonList(visitor));
+        } catch (RuntimeException e) {
+            visitor.abort();
+            throw e;
         }
+        return visitor.finish();
+    }
 
-        // Read audio bytes.
-        AudioFormat format = audioInputStream.getFormat();
-
-        long sizeInBytes = audioInputStream.getFrameLength() * format.getFrameSize();
-
-        if (sizeInBytes < Integer.MIN_VALUE || sizeInBytes > Integer.MAX_VALUE) {
-            throw new RuntimeException("Audio file is too big.");
-        }
+    @Override
+    public FrameVisitor newFrameVisitor(Sample sample) {
+        return new SoundVisitor(sample, loudnessEnvelope);
+    }
 
-        byte[] audioBytes = new byte[(int) sizeInBytes];
-        try {
-            audioInputStream.read(audioBytes);
-        } catch (IOException ex) {
-            throw new RuntimeException(
-                    String.format("Can't read data from file \"%s\".", audioFile.getAbsolutePath()),
-                    ex
-            );
+    /**
+     * Windowed peak and sum of squares over the samples of all channels.
+     */
+    private class SoundVisitor implements FrameVisitor {
+
+        private final Sample sample;
+        /**
+         * Samples of all channels per window, 0 until the first frame.
+         */
+        private int windowLength = 0;
+        private int count = 0;
+        private long sumSquares = 0;
+        private int peak = 0;
+        private boolean sound = false;
+
+        /**
+         * Null if no envelope is written.
+         */
+        private byte[] levels = null;
+        private int levelCount = 0;
+        private int envelopeLength = 0;
+        private int envelopeCount = 0;
+        private long envelopeSumSquares = 0;
+
+        SoundVisitor(Sample sample, boolean loudnessEnvelope) {
+            this.sample = sample;
+            if (loudnessEnvelope) {
+                levels = new byte[sample.getDudation() / LoudnessEnvelope.DEFAULT_INTERVAL + 1];
+            }
         }
 
-        try {
-            audioInputStream.close();
-        } catch (IOException ex) {
-            throw new RuntimeException(
-                    String.format("Can't close audio stream for file \"%s\".", audioFile.getAbsolutePath()),
-                    ex
-            );
+        @Override
+        public MediaType getMediaType() {
+            return MediaType.AUDIO;
         }
 
-        // Decode samples.
-        int[][] samples;
-        switch (format.getSampleSizeInBits()) {
-            case 16: {
-                int sampleLengthInBytes = 2;
-                int channelLengthInSamples = audioBytes.length / sampleLengthInBytes / format.getChannels();
-                samples = new int[format.getChannels()][channelLengthInSamples];
-                for (int channelNum = 0; channelNum < format.getChannels(); channelNum++) {
-                    if (format.isBigEndian()) {
-                        for (int sampleNum = 0; sampleNum < channelLengthInSamples; sampleNum++) {
-                            int sampleStart = (sampleNum * format.getChannels() + channelNum) * sampleLengthInBytes;
-                            /* First byte is MSB (high order) */
-                            int MSB = (int) audioBytes[sampleStart];
-                            /* Second byte is LSB (low order) */
-                            int LSB = (int) audioBytes[sampleStart + 1];
-                            samples[channelNum][sampleNum] = MSB << 8 | (255 & LSB);
-                        }
-                    } else {
-                        for (int sampleNum = 0; sampleNum < channelLengthInSamples; sampleNum++) {
-                            int sampleStart = (sampleNum * format.getChannels() + channelNum) * sampleLengthInBytes;
-                            /* First byte is LSB (low order) */
-                            int LSB = (int) audioBytes[sampleStart];
-                            /* Second byte is MSB (high order) */
-                            int MSB = (int) audioBytes[sampleStart + 1];
-                            samples[channelNum][sampleNum] = MSB << 8 | (255 & LSB);
-                        }
-                    }
+        @Override
+        public boolean visit(Frame frame) {
+            if (windowLength == 0) {
+                long rate = (long) frame.sampleRate * Math.max(1, frame.audioChannels);
+                windowLength = (int) Math.max(1, rate * window / 1000);
+                envelopeLength = (int) Math.max(1, rate * LoudnessEnvelope.DEFAULT_INTERVAL / 1000);
+            }
+            // Planar frames carry a buffer per channel, a window takes the same time from each of them.
+            int step = frame.samples.length;
+            for (Buffer buffer : frame.samples) {
+                if (!(buffer instanceof ShortBuffer)) {
+                    throw new RuntimeException("Unsupported sample format, 16 bit samples expected.");
                 }
-                break;
             }
-            case 8: {
-                int sampleLengthInBytes = 1;
-                int channelLengthInSamples = audioBytes.length / sampleLengthInBytes / format.getChannels();
-                samples = new int[format.getChannels()][channelLengthInSamples];
-                for (int channelNum = 0; channelNum < format.getChannels(); channelNum++) {
-                    if (format.getEncoding().toString().startsWith("PCM_SIGN")) {
-                        for (int sampleNum = 0; sampleNum < channelLengthInSamples; sampleNum++) {
-                            int sampleStart = (sampleNum * format.getChannels() + channelNum) * sampleLengthInBytes;
-                            samples[channelNum][sampleNum] = audioBytes[sampleStart];
-                        }
-                    } else {
-                        for (int sampleNum = 0; sampleNum < channelLengthInSamples; sampleNum++) {
-                            int sampleStart = (sampleNum * format.getChannels() + channelNum) * sampleLengthInBytes;
-                            samples[channelNum][sampleNum] = audioBytes[sampleStart] - 128;
-                        }
+            ShortBuffer first = (ShortBuffer) frame.samples[0];
+            int length = first.limit() - first.position();
+            for (int i = 0; i < length; i++) {
+                for (int channel = 0; channel < step; channel++) {
+                    ShortBuffer samples = (ShortBuffer) frame.samples[channel];
+                    int value = samples.get(samples.position() + i);
+                    int amplitude = value < 0 ? -value : value;
+                    if (amplitude > peak) {
+                        peak = amplitude;
                     }
+                    int square = value * value;
+                    sumSquares += square;
+                    envelopeSumSquares += square;
+                    count++;
+                }
+                if (levels != null) {
+                    envelopeCount += step;
+                    if (envelopeCount >= envelopeLength) {
+                        closeInterval();
+                    }
+                }
+                if (count >= windowLength && closeWindow() && levels == null) {
+                    return false;
                 }
-                break;
             }
-            default:
-                throw new RuntimeException("Unsupported bit rate value of sample.");
+            return true;
         }
 
-        double[][] decibels = new double[samples.length][samples[0].length];
-        double peak = Math.pow(256, format.getSampleSizeInBits() / 8) / 2;
-        for (int channelNum = 0; channelNum < samples.length; channelNum++) {
-            for (int sampleNum = 0; sampleNum < samples[channelNum].length; sampleNum++) {
-                if (samples[channelNum][sampleNum] == 0) {
-                    decibels[channelNum][sampleNum] = Double.NEGATIVE_INFINITY;
-                } else {
-                    decibels[channelNum][sampleNum] = 20 * Math.log10(Math.abs(samples[channelNum][sampleNum]) / peak);
-                }
+        private void closeInterval() {
+            if (levelCount == levels.length) {
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            // One logarithm per interval, not per sample.
+            levels[levelCount++] = LoudnessEnvelope.level((double) envelopeSumSquares / envelopeCount);
+            envelopeCount = 0;
+            envelopeSumSquares = 0;
+        }
 
-//                // Decibels for chart.
-//                int sign = (int) Math.signum(samples[channelNum][sampleNum]);
-//                double maxValue = Math.abs(20 * Math.log10(1 / peak)) + 1;
-//                if (decibels[channelNum][sampleNum] == Double.NEGATIVE_INFINITY) {
-//                    decibels[channelNum][sampleNum] = 0;
-//                } else {
-//                    decibels[channelNum][sampleNum] = sign * (maxValue - Math.abs(decibels[channelNum][sampleNum]));
-//                }
+        /**
+         * @return true if the window is over the threshold.
+         */
+        private boolean closeWindow() {
+            boolean over;
+            if (level == Level.PEAK) {
+                over = peak > amplitudeThreshold;
+            } else {
+                over = sumSquares > squareThreshold * count;
             }
+            count = 0;
+            sumSquares = 0;
+            peak = 0;
+            sound |= over;
+            return over;
+        }
+
+        @Override
+        public boolean finish() {
+            if (!sound && count > 0) {
+                // The last window is shorter, still compared as it is.
+                closeWindow();
+            }
+            if (levels != null) {
+                if (envelopeCount > 0) {
+                    closeInterval();
+                }
+                new LoudnessEnvelope(sample.getBeginTime(), LoudnessEnvelope.DEFAULT_INTERVAL, Arrays.copyOf(levels, levelCount))
+                        .write(LoudnessEnvelope.sidecarOf(sample.getFile()));
+            }
+            return sound;
         }
-        return decibels;
     }
+
 }
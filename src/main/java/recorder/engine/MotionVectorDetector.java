@@ -0,0 +1,248 @@
+package recorder.engine;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import recorder.engine.live_analyzer.LiveDecoder;
+import recorder.engine.stream_chunker.PacketClock;
+import recorder.record.triggers.MotionDetector;
+import recorder.sampler.Sample;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avcodec.avcodec_get_name;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Detects motion from the motion vectors the H.264 decoder exports as frame side data, no picture is converted or compared.
+ * Samples of codecs whose decoder exports no vectors, e.g. HEVC, fail the check, see {@link #exportsVectors(int)}.
+ * The thresholds are the max percent of the frame (or of the zones) covered by blocks
+ * that moved at least {@link #getMinVectorLength()} pixels since the previous frame.
+ * Every frame is still decoded, only the conversion and the compare are saved: the decode takes about 60% of the
+ * CPU of a full decode with conversion, far more than the key frame mode of {@link OpencvMotionDetector#fast()}.
+ */
+public class MotionVectorDetector extends MotionDetector {
+
+    private static final Logger LOG = Logger.getLogger(MotionVectorDetector.class.getName());
+
+    /**
+     * In pixels.
+     */
+    public final static double DEFAULT_MIN_VECTOR_LENGTH = 2;
+    private final static int CELL_SIZE = 16;
+    private final static long VECTOR_SIZE = Loader.sizeof(avutil.AVMotionVector.class);
+
+    private volatile double minVectorLength = DEFAULT_MIN_VECTOR_LENGTH;
+    private volatile List<Rectangle2D> zones = Collections.emptyList();
+
+    public MotionVectorDetector(long durationBefore, long durationAfter, double thresholdMin, double thresholdMax) {
+        super(durationBefore, durationAfter, thresholdMin, thresholdMax);
+    }
+
+    public double getMinVectorLength() {
+        return minVectorLength;
+    }
+
+    /**
+     * @param minVectorLength In pixels, shorter vectors are encoder noise of a static scene.
+     */
+    public void setMinVectorLength(double minVectorLength) {
+        if (minVectorLength < 0) {
+            throw new IllegalArgumentException("Min vector length is negative.");
+        }
+        this.minVectorLength = minVectorLength;
+    }
+
+    public List<Rectangle2D> getZones() {
+        return zones;
+    }
+
+    /**
+     * @param zones Areas in frame fractions [0,1], e.g. (0, 0.5, 1, 0.5) for the lower half. Empty for the whole frame.
+     */
+    public void setZones(List<? extends Rectangle2D> zones) {
+        if (zones == null) {
+            throw new IllegalArgumentException("Zones are null.");
+        }
+        this.zones = Collections.unmodifiableList(new ArrayList<>(zones));
+    }
+
+    @Override
+    protected boolean _check(Sample sample) {
+        double maxMotionPercent = maxMotionPercent(sample, getThresholdMax());
+        return maxMotionPercent >= getThresholdMin() && maxMotionPercent <= getThresholdMax();
+    }
+
+    /**
+     * @param stopAbove The analysis stops once the max exceeds it.
+     * @return Max percent of the frame or zones moved between two frames of the sample.
+     */
+    public double maxMotionPercent(Sample sample, double stopAbove) {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(sample.getFile());
+        LiveDecoder decoder = null;
+        avutil.AVDictionary options = new avutil.AVDictionary(null);
+        try {
+            grabber.start();
+            avformat.AVFormatContext formatContext = grabber.getFormatContext();
+            int videoStreamIndex = PacketClock.findVideoStreamIndex(formatContext);
+            if (videoStreamIndex < 0) {
+                throw new RuntimeException("No video stream.");
+            }
+            avformat.AVStream stream = formatContext.streams(videoStreamIndex);
+            if (!exportsVectors(stream.codecpar().codec_id())) {
+                throw new RuntimeException(String.format("Codec %s doesn't export motion vectors.",
+                        avcodec_get_name(stream.codecpar().codec_id()).getString()));
+            }
+            av_dict_set(options, "flags2", "+export_mvs", 0);
+            decoder = new LiveDecoder(stream, options);
+
+            VectorCounter counter = new VectorCounter(zones, minVectorLength);
+            double maxMotionPercent = 0;
+            avcodec.AVPacket packet;
+            while (maxMotionPercent <= stopAbove && (packet = grabber.grabPacket()) != null) {
+                if (packet.stream_index() == videoStreamIndex && decoder.send(packet)) {
+                    avutil.AVFrame frame;
+                    while ((frame = decoder.receive()) != null) {
+                        maxMotionPercent = Math.max(maxMotionPercent, counter.motionPercent(frame));
+                    }
+                }
+                av_packet_unref(packet);
+            }
+            if (maxMotionPercent <= stopAbove) {
+                // The decoder holds frames back for reordering.
+                decoder.drain();
+                avutil.AVFrame frame;
+                while ((frame = decoder.receive()) != null) {
+                    maxMotionPercent = Math.max(maxMotionPercent, counter.motionPercent(frame));
+                }
+            }
+            return maxMotionPercent;
+        } catch (Exception ex) {
+            throw new RuntimeException(
+                    String.format("Can't analyze motion vectors of sample file \"%s\".", sample.getFile().getAbsolutePath()),
+                    ex
+            );
+        } finally {
+            av_dict_free(options);
+            if (decoder != null) {
+                decoder.release();
+            }
+            try {
+                grabber.stop();
+                grabber.release();
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Error in MotionVectorDetector on grabber stop/release.", e);
+            }
+        }
+    }
+
+    /**
+     * @return true for the decoders of FFmpeg that honor "+export_mvs", H.264 and the MPEG family.
+     */
+    public static boolean exportsVectors(int codecId) {
+        switch (codecId) {
+            case avcodec.AV_CODEC_ID_H264:
+            case avcodec.AV_CODEC_ID_MPEG4:
+            case avcodec.AV_CODEC_ID_MPEG2VIDEO:
+            case avcodec.AV_CODEC_ID_MPEG1VIDEO:
+            case avcodec.AV_CODEC_ID_H263:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Area of significant vectors of a frame, with a 16x16 cell mask of the zones built for the frame size.
+     */
+    private static class VectorCounter {
+
+        private final List<Rectangle2D> zones;
+        private final double minVectorLengthSquare;
+        private int width = -1;
+        private int height = -1;
+        private int cellsX;
+        private boolean[] mask = null;
+        private long area;
+
+        VectorCounter(List<Rectangle2D> zones, double minVectorLength) {
+            this.zones = zones;
+            this.minVectorLengthSquare = minVectorLength * minVectorLength;
+        }
+
+        double motionPercent(avutil.AVFrame frame) {
+            avutil.AVFrameSideData sideData = av_frame_get_side_data(frame, AV_FRAME_DATA_MOTION_VECTORS);
+            if (sideData == null) {
+                // Key frames have no vectors.
+                return 0;
+            }
+            if (frame.width() != width || frame.height() != height) {
+                buildMask(frame.width(), frame.height());
+            }
+            if (area == 0) {
+                return 0;
+            }
+            long count = sideData.size() / VECTOR_SIZE;
+            avutil.AVMotionVector vectors = new avutil.AVMotionVector(sideData.data());
+            long moved = 0;
+            for (long i = 0; i < count; i++) {
+                vectors.position(i);
+                // Vectors to a later frame repeat the motion seen from the earlier one.
+                if (vectors.source() > 0) {
+                    continue;
+                }
+                double scale = vectors.motion_scale() != 0 ? vectors.motion_scale() : 1;
+                double dx = vectors.motion_x() / scale;
+                double dy = vectors.motion_y() / scale;
+                if (dx * dx + dy * dy < minVectorLengthSquare) {
+                    continue;
+                }
+                if (mask != null) {
+                    int cx = Math.min(Math.max(vectors.dst_x(), 0), width - 1) / CELL_SIZE;
+                    int cy = Math.min(Math.max(vectors.dst_y(), 0), height - 1) / CELL_SIZE;
+                    if (!mask[cy * cellsX + cx]) {
+                        continue;
+                    }
+                }
+                moved += (vectors.w() & 0xFF) * (vectors.h() & 0xFF);
+            }
+            return Math.min(100.0, 100.0 * moved / area);
+        }
+
+        private void buildMask(int width, int height) {
+            this.width = width;
+            this.height = height;
+            if (zones.isEmpty()) {
+                mask = null;
+                area = (long) width * height;
+                return;
+            }
+            cellsX = (width + CELL_SIZE - 1) / CELL_SIZE;
+            int cellsY = (height + CELL_SIZE - 1) / CELL_SIZE;
+            mask = new boolean[cellsX * cellsY];
+            area = 0;
+            for (int cy = 0; cy < cellsY; cy++) {
+                for (int cx = 0; cx < cellsX; cx++) {
+                    double x = (cx + 0.5) * CELL_SIZE / width;
+                    double y = (cy + 0.5) * CELL_SIZE / height;
+                    for (Rectangle2D zone : zones) {
+                        if (zone.contains(x, y)) {
+                            mask[cy * cellsX + cx] = true;
+                            area += CELL_SIZE * CELL_SIZE;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
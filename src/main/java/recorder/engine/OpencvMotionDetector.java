@@ -8,26 +8,164 @@ import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.OpenCVFrameConverter;
+import recorder.common.MediaType;
+import recorder.engine.stream_hub.PacketActivityEstimator;
+import recorder.record.FrameVisitor;
+import recorder.record.MotionActivity;
 import recorder.record.triggers.MotionDetector;
 import recorder.sampler.Sample;
+import recorder.sampler.Sampler;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
 import static org.bytedeco.javacpp.opencv_core.cvAbsDiff;
 import static org.bytedeco.javacpp.opencv_imgproc.*;
 
 
+/**
+ * Meant for the samples of one camera, it keeps the last analyzed frame and its buffers from sample to sample
+ * until {@link #release()}. The samples have to come from one stream in time order, e.g. a single recorder,
+ * give each stream its own detector.
+ */
 public class OpencvMotionDetector extends MotionDetector {
 
+    /**
+     * Width of the gray plane in the fast mode.
+     */
+    public final static int FAST_ANALYSIS_WIDTH = 320;
+    public final static float DEFAULT_ACTIVITY_THRESHOLD = 1.5f;
+
+    private volatile FrameVisitor.FrameSkip frameSkip = FrameVisitor.FrameSkip.NONE;
+    private volatile int analysisWidth = 0;
+    private volatile PacketActivityEstimator activityEstimator = null;
+    private volatile float activityThreshold = DEFAULT_ACTIVITY_THRESHOLD;
+    private final MotionModel model = new MotionModel();
+    private volatile boolean motionActivity = false;
+    private volatile int zoneGrid = 0;
+
     public OpencvMotionDetector(long durationBefore, long durationAfter, double thresholdMin, double thresholdMax) {
         super(durationBefore, durationAfter, thresholdMin, thresholdMax);
     }
 
+    /**
+     * Analyzes key frames only, scaled down to {@link #FAST_ANALYSIS_WIDTH} gray plane by the decoder.
+     * Most of the decoding and conversion work is skipped, motion shorter than a GOP can be missed.
+     */
+    public OpencvMotionDetector fast() {
+        setFrameSkip(FrameVisitor.FrameSkip.NON_KEY);
+        setAnalysisWidth(FAST_ANALYSIS_WIDTH);
+        return this;
+    }
+
+    public FrameVisitor.FrameSkip getFrameSkip() {
+        return frameSkip;
+    }
+
+    /**
+     * Frames the decoder may skip, a decoder shared with other triggers skips only what all of them allow.
+     */
+    public void setFrameSkip(FrameVisitor.FrameSkip frameSkip) {
+        if (frameSkip == null) {
+            throw new IllegalArgumentException("Frame skip is null.");
+        }
+        this.frameSkip = frameSkip;
+    }
+
+    public int getAnalysisWidth() {
+        return analysisWidth;
+    }
+
+    /**
+     * @param analysisWidth Width of the analyzed gray plane, the height keeps the aspect ratio. 0 for full resolution.
+     */
+    public void setAnalysisWidth(int analysisWidth) {
+        if (analysisWidth != 0 && analysisWidth < 8) {
+            throw new IllegalArgumentException("Analysis width is less than 8.");
+        }
+        this.analysisWidth = analysisWidth;
+    }
+
+    public boolean isMotionActivity() {
+        return motionActivity;
+    }
+
+    public int getZoneGrid() {
+        return zoneGrid;
+    }
+
+    @Override
+    public boolean hasSidecar() {
+        return motionActivity;
+    }
+
+    /**
+     * Writes a {@link MotionActivity} sidecar next to every checked sample file, computed in the same pass.
+     * The whole sample is then analyzed, not only up to the first frame over the max threshold.
+     *
+     * @param zoneGrid Cells per side of the zone grid, 0 without zones.
+     */
+    public void setMotionActivity(boolean motionActivity, int zoneGrid) {
+        if (zoneGrid < 0 || zoneGrid > MotionActivity.MAX_GRID) {
+            throw new IllegalArgumentException("Zone grid is out of [0, " + MotionActivity.MAX_GRID + "].");
+        }
+        this.zoneGrid = zoneGrid;
+        this.motionActivity = motionActivity;
+    }
+
+    public PacketActivityEstimator getActivityEstimator() {
+        return activityEstimator;
+    }
+
+    /**
+     * Samples whose packet activity score stays below the threshold are reported without motion and aren't decoded.
+     * Samples the estimator has no scores for are analyzed as usual.
+     *
+     * @param activityEstimator null to analyze every sample.
+     */
+    public void setActivityEstimator(PacketActivityEstimator activityEstimator, float activityThreshold) {
+        if (activityThreshold <= 0) {
+            throw new IllegalArgumentException("Activity threshold is not positive.");
+        }
+        this.activityThreshold = activityThreshold;
+        this.activityEstimator = activityEstimator;
+    }
+
+    private boolean isInactive(Sample sample) {
+        PacketActivityEstimator estimator = activityEstimator;
+        if (estimator == null) {
+            return false;
+        }
+        // The sample times are snapped to the previous sample, the packet clock isn't.
+        float score = estimator.getMaxScore(sample.getBeginTime() - Sampler.MAX_SNAP - 1000, sample.getEndTime() + Sampler.MAX_SNAP);
+        return !Float.isNaN(score) && score < activityThreshold;
+    }
+
     @Override
     protected boolean _check(Sample sample) {
-        double maxMotionPercent = maxMotionPercentV1(sample.getFile());
-        return maxMotionPercent >= getThresholdMin() && maxMotionPercent <= getThresholdMax();
+        if (isInactive(sample)) {
+            return false;
+        }
+        FrameVisitor visitor = newFrameVisitor(sample);
+        try {
+            new FfmpegSampleDecoder().decode(sample, Collections.singletonList(visitor));
+        } catch (RuntimeException e) {
+            visitor.abort();
+            throw e;
+        }
+        return visitor.finish();
+    }
+
+    @Override
+    public FrameVisitor newFrameVisitor(Sample sample) {
+        if (isInactive(sample)) {
+            // Checked without decoding.
+            return null;
+        }
+        return new MotionVisitor(sample, frameSkip, analysisWidth, motionActivity ? zoneGrid : -1);
     }
 
     private static double maxMotionPercentV0(File videoFile) {
@@ -104,52 +242,338 @@ public class OpencvMotionDetector extends MotionDetector {
         }
     }
 
-    private static double maxMotionPercentV1(File videoFile) {
-        try {
-            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile.getAbsolutePath());
-            grabber.start();
-            final Size frameSize = new Size(
-                    (int) grabber.getImageWidth(),
-                    (int) grabber.getImageHeight()
-            );
-            int totalPixels = frameSize.area();
-            opencv_core.IplImage image = opencv_core.IplImage.create(grabber.getImageWidth(), grabber.getImageHeight(), IPL_DEPTH_8U, 1);
-            opencv_core.IplImage prevImage = null;
-            opencv_core.IplImage diff = opencv_core.IplImage.create(grabber.getImageWidth(), grabber.getImageHeight(), IPL_DEPTH_8U, 1);
-            OpenCVFrameConverter.ToIplImage converter = new OpenCVFrameConverter.ToIplImage();
-            double motionPercent;
-            double maxMotionPercent = 0;
-            Frame frame;
-            long lastTimestamp = -1;
-            while ((frame = grabber.grabImage()) != null) {
-                if (lastTimestamp != -1 && grabber.getTimestamp() - lastTimestamp < 1000000) {
-                    continue;
-                }
-                lastTimestamp = grabber.getTimestamp();
+    /**
+     * Frees the buffers kept between samples, the next sample starts a new model.
+     */
+    @Override
+    public void release() {
+        model.release();
+    }
 
+    /**
+     * @return Native bytes allocated by the model since the detector was created.
+     */
+    public long getAllocatedBytes() {
+        return model.getAllocatedBytes();
+    }
+
+    /**
+     * @return In milliseconds, duration of the samples analyzed since the detector was created.
+     */
+    public long getAnalyzedDuration() {
+        return model.getAnalyzedDuration();
+    }
+
+    /**
+     * @return Native bytes allocated per minute of analyzed samples, 0 if nothing is analyzed yet.
+     */
+    public double getAllocatedBytesPerMinute() {
+        long duration = getAnalyzedDuration();
+        return duration == 0 ? 0 : getAllocatedBytes() * 60000.0 / duration;
+    }
+
+    /**
+     * State of the camera carried from sample to sample: the last compared frame and the work buffers.
+     * Samples are expected in time order from a single stream, as one recorder or the device's sidecar pass
+     * hands them over. Frames of a sample older than the current one aren't compared, another stream replaying
+     * the same minutes can't rewind the model. Thread safe.
+     */
+    private static class MotionModel {
+
+        /**
+         * In microseconds, the last frame of a sample isn't compared with the first one of the next sample
+         * if they are further apart than this and twice the interval of the frames compared within a sample.
+         * Frames of the same sample are always compared, key frames of a long GOP may be far apart.
+         */
+        private final static long MAX_GAP = 5000000;
+
+        private final OpenCVFrameConverter.ToIplImage converter = new OpenCVFrameConverter.ToIplImage();
+        private opencv_core.IplImage image = null;
+        private opencv_core.IplImage prevImage = null;
+        private opencv_core.IplImage diff = null;
+        private boolean hasPrevImage = false;
+        /**
+         * Wall clock in microseconds of the last compared frame, -1 if none.
+         */
+        private long lastTimestamp = -1;
+        /**
+         * Begin in microseconds of the sample of the last compared frame.
+         */
+        private long lastSampleBegin = -1;
+        /**
+         * In microseconds, between the last two compared frames of the same sample.
+         */
+        private long interval = 0;
+        private long allocatedBytes = 0;
+        private long analyzedDuration = 0;
+
+        /**
+         * Zone cell of every column and row of the planes, for the grid they were built for.
+         */
+        private int[] columnCells = null;
+        private int[] rowCells = null;
+        private int[] cellPixels = null;
+        private int[] cellCounts = null;
+        private int grid = 0;
+
+        /**
+         * @param sampleBegin  Begin of the frame's sample in microseconds.
+         * @param timestamp    Wall clock in microseconds.
+         * @param grid         Cells per side of the zone grid, 0 without zones.
+         * @param zonePercents Receives the percent per cell if the frame is compared and grid isn't 0.
+         * @return Percent of pixels changed since the frame a second before, -1 if the frame isn't compared.
+         */
+        synchronized double motionPercent(Frame frame, long sampleBegin, long timestamp, int grid, float[] zonePercents) {
+            if (sampleBegin < lastSampleBegin) {
+                return -1;
+            }
+            long gap = timestamp - lastTimestamp;
+            if (lastTimestamp != -1 && gap >= 0 && gap < 1000000) {
+                return -1;
+            }
+            if (lastTimestamp == -1 || gap < 0) {
+                hasPrevImage = false;
+            } else if (sampleBegin == lastSampleBegin) {
+                interval = gap;
+            } else if (gap > Math.max(MAX_GAP, 2 * interval)) {
+                hasPrevImage = false;
+            }
+            lastTimestamp = timestamp;
+            lastSampleBegin = sampleBegin;
+
+            if (image == null || image.width() != frame.imageWidth || image.height() != frame.imageHeight) {
+                allocate(frame.imageWidth, frame.imageHeight);
+            }
+            if (frame.imageChannels == 1) {
+                opencv_core.cvCopy(converter.convert(frame), image);
+            } else {
                 cvCvtColor(converter.convert(frame), image, CV_RGB2GRAY);
-                if (prevImage != null) {
-                    cvAbsDiff(image, prevImage, diff);
-                    cvThreshold(diff, diff, 40, 255, CV_THRESH_BINARY);
-                    motionPercent = 100.0 * opencv_core.cvCountNonZero(diff) / totalPixels;
-                    if (maxMotionPercent < motionPercent) {
-                        maxMotionPercent = motionPercent;
+            }
+            double motionPercent = -1;
+            if (hasPrevImage) {
+                cvAbsDiff(image, prevImage, diff);
+                cvThreshold(diff, diff, 40, 255, CV_THRESH_BINARY);
+                motionPercent = 100.0 * opencv_core.cvCountNonZero(diff) / ((long) frame.imageWidth * frame.imageHeight);
+                if (grid > 0) {
+                    countZones(grid, zonePercents);
+                }
+            }
+            opencv_core.cvCopy(image, prevImage);
+            hasPrevImage = true;
+            return motionPercent;
+        }
+
+        private void countZones(int grid, float[] zonePercents) {
+            int width = image.width();
+            int height = image.height();
+            if (this.grid != grid || columnCells == null || columnCells.length != width || rowCells.length != height) {
+                this.grid = grid;
+                columnCells = new int[width];
+                rowCells = new int[height];
+                cellPixels = new int[grid * grid];
+                cellCounts = new int[grid * grid];
+                for (int x = 0; x < width; x++) {
+                    columnCells[x] = x * grid / width;
+                }
+                for (int y = 0; y < height; y++) {
+                    rowCells[y] = y * grid / height * grid;
+                    for (int x = 0; x < width; x++) {
+                        cellPixels[rowCells[y] + columnCells[x]]++;
+                    }
+                }
+            }
+            Arrays.fill(cellCounts, 0);
+            ByteBuffer pixels = diff.getByteBuffer();
+            int widthStep = diff.widthStep();
+            for (int y = 0; y < height; y++) {
+                int row = y * widthStep;
+                int rowCell = rowCells[y];
+                for (int x = 0; x < width; x++) {
+                    if (pixels.get(row + x) != 0) {
+                        cellCounts[rowCell + columnCells[x]]++;
                     }
-                } else {
-                    prevImage = opencv_core.IplImage.createCompatible(image);
                 }
-                opencv_core.cvCopy(image, prevImage);
             }
-            grabber.stop();
-            grabber.release();
-            image.release();
+            for (int cell = 0; cell < cellCounts.length; cell++) {
+                zonePercents[cell] = cellPixels[cell] == 0 ? 0 : 100f * cellCounts[cell] / cellPixels[cell];
+            }
+        }
+
+        synchronized void addAnalyzedDuration(long duration) {
+            analyzedDuration += duration;
+        }
+
+        private void allocate(int width, int height) {
+            freeImages();
+            hasPrevImage = false;
+            image = opencv_core.IplImage.create(width, height, IPL_DEPTH_8U, 1);
+            prevImage = opencv_core.IplImage.createCompatible(image);
+            diff = opencv_core.IplImage.createCompatible(image);
+            // Three 8 bit gray planes, row padding aside.
+            allocatedBytes += 3L * width * height;
+        }
+
+        /**
+         * The next frame isn't compared with the last one.
+         */
+        synchronized void reset() {
+            hasPrevImage = false;
+            lastTimestamp = -1;
+            lastSampleBegin = -1;
+        }
+
+        synchronized void release() {
+            freeImages();
+            hasPrevImage = false;
+            lastTimestamp = -1;
+            lastSampleBegin = -1;
+            interval = 0;
+        }
+
+        private void freeImages() {
+            if (image != null) {
+                image.release();
+                image = null;
+            }
             if (prevImage != null) {
                 prevImage.release();
+                prevImage = null;
             }
-            diff.release();
-            return maxMotionPercent;
-        } catch (FrameGrabber.Exception ex) {
-            throw new RuntimeException(ex);
+            if (diff != null) {
+                diff.release();
+                diff = null;
+            }
+        }
+
+        synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        synchronized long getAnalyzedDuration() {
+            return analyzedDuration;
+        }
+    }
+
+    /**
+     * Max percent of pixels changed between frames one second apart, see maxMotionPercentV0 for the former way.
+     * The first frame of a sample is compared with the last one of the previous sample.
+     */
+    private class MotionVisitor implements FrameVisitor {
+
+        private final FrameSkip frameSkip;
+        private final int analysisWidth;
+        /**
+         * In microseconds.
+         */
+        private final long sampleBegin;
+        private final int sampleDuration;
+        private final Sample sample;
+        private double maxMotionPercent = 0;
+
+        /**
+         * Cells per side of the zone grid, -1 if no activity is written.
+         */
+        private final int grid;
+        private float[] secondMax = null;
+        private double[] secondSum = null;
+        private int[] secondCount = null;
+        private float[] zoneMax = null;
+        private float[] zonePercents = null;
+
+        MotionVisitor(Sample sample, FrameSkip frameSkip, int analysisWidth, int grid) {
+            this.sample = sample;
+            this.sampleBegin = sample.getBeginTime() * 1000;
+            this.sampleDuration = sample.getDudation();
+            this.frameSkip = frameSkip;
+            this.analysisWidth = analysisWidth;
+            this.grid = grid;
+            if (grid >= 0) {
+                int seconds = sampleDuration / 1000 + 1;
+                secondMax = new float[seconds];
+                secondSum = new double[seconds];
+                secondCount = new int[seconds];
+                if (grid > 0) {
+                    zoneMax = new float[seconds * grid * grid];
+                    zonePercents = new float[grid * grid];
+                }
+            }
+        }
+
+        @Override
+        public MediaType getMediaType() {
+            return MediaType.VIDEO;
+        }
+
+        @Override
+        public FrameSkip getFrameSkip() {
+            return frameSkip;
+        }
+
+        @Override
+        public int getImageWidth() {
+            return analysisWidth;
+        }
+
+        @Override
+        public boolean isGrayAccepted() {
+            return true;
+        }
+
+        @Override
+        public boolean visit(Frame frame) {
+            double motionPercent = model.motionPercent(frame, sampleBegin, sampleBegin + frame.timestamp, Math.max(0, grid), zonePercents);
+            if (maxMotionPercent < motionPercent) {
+                maxMotionPercent = motionPercent;
+            }
+            if (secondMax != null) {
+                if (motionPercent >= 0) {
+                    addActivity(motionPercent, (int) Math.min(secondMax.length - 1, Math.max(0, frame.timestamp / 1000000)));
+                }
+                return true;
+            }
+            /* The max only grows, above the threshold the answer can't change */
+            return maxMotionPercent <= getThresholdMax();
+        }
+
+        private void addActivity(double motionPercent, int second) {
+            secondMax[second] = (float) Math.max(secondMax[second], motionPercent);
+            secondSum[second] += motionPercent;
+            secondCount[second]++;
+            if (zoneMax != null) {
+                int cells = zonePercents.length;
+                for (int cell = 0; cell < cells; cell++) {
+                    zoneMax[second * cells + cell] = Math.max(zoneMax[second * cells + cell], zonePercents[cell]);
+                }
+            }
+        }
+
+        @Override
+        public boolean finish() {
+            model.addAnalyzedDuration(sampleDuration);
+            if (secondMax != null) {
+                byte[] max = new byte[secondMax.length];
+                byte[] mean = new byte[secondMax.length];
+                for (int i = 0; i < max.length; i++) {
+                    max[i] = MotionActivity.quantize(secondMax[i]);
+                    mean[i] = MotionActivity.quantize(secondCount[i] == 0 ? 0 : secondSum[i] / secondCount[i]);
+                }
+                byte[] zones = null;
+                if (zoneMax != null) {
+                    zones = new byte[zoneMax.length];
+                    for (int i = 0; i < zones.length; i++) {
+                        zones[i] = MotionActivity.quantize(zoneMax[i]);
+                    }
+                }
+                new MotionActivity(sample.getBeginTime(), grid, max, mean, zones)
+                        .write(MotionActivity.sidecarOf(sample.getFile()));
+            }
+            return maxMotionPercent >= getThresholdMin() && maxMotionPercent <= getThresholdMax();
+        }
+
+        @Override
+        public void abort() {
+            // Buffers stay with the model, only the continuity is lost.
+            model.reset();
         }
     }
 
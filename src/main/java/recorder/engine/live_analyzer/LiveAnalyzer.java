@@ -0,0 +1,344 @@
+package recorder.engine.live_analyzer;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.ShortPointer;
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacpp.swresample;
+import org.bytedeco.javacpp.swscale;
+import recorder.common.Executor;
+import recorder.common.MediaType;
+import recorder.engine.stream_chunker.PacketClock;
+import recorder.engine.stream_chunker.simplified_grabber.PacketGrabber;
+import recorder.record.StreamingTrigger;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swresample.*;
+import static org.bytedeco.javacpp.swscale.*;
+
+/**
+ * Decodes the live stream of a camera and feeds {@link StreamingTrigger}s as frames arrive,
+ * so recordings can start within a second of activity instead of after a closed sample.
+ * Video is analyzed as a small gray plane at a limited rate, audio as mono 16 bit samples.
+ */
+public class LiveAnalyzer extends Executor {
+
+    private static final Logger LOG = Logger.getLogger(LiveAnalyzer.class.getName());
+
+    public static interface Listener {
+
+        /**
+         * @param timestamp Wall clock in microseconds.
+         */
+        public void onActivity(StreamingTrigger trigger, long timestamp);
+
+        /**
+         * Called after every analyzed frame or audio buffer, e.g. to end a recording after a quiet period.
+         *
+         * @param timestamp Wall clock in microseconds.
+         */
+        public default void onAnalyzed(long timestamp) {
+        }
+
+        /**
+         * Called when the stream is lost or its analysis fails, before the analyzer reconnects,
+         * e.g. to end a recording the triggers started.
+         */
+        public default void onStreamLost() {
+        }
+    }
+
+    public final static int DEFAULT_ANALYSIS_WIDTH = 160;
+    /**
+     * In microseconds.
+     */
+    public final static long DEFAULT_ANALYSIS_INTERVAL = 200000;
+    /**
+     * In milliseconds, doubled after every failed attempt up to the max.
+     */
+    private final static long RESTART_DELAY = 1000;
+    private final static long MAX_RESTART_DELAY = 60000;
+
+    private final Supplier<? extends PacketGrabber> grabberSupplier;
+    private final List<StreamingTrigger> triggers = new CopyOnWriteArrayList<>();
+    private final Listener listener;
+    private volatile int analysisWidth = DEFAULT_ANALYSIS_WIDTH;
+    private volatile long analysisInterval = DEFAULT_ANALYSIS_INTERVAL;
+
+    private swscale.SwsContext scaler = null;
+    private BytePointer grayPointer = null;
+    private ByteBuffer grayBuffer = null;
+    private final PointerPointer grayData = new PointerPointer(1);
+    private final IntPointer grayLinesize = new IntPointer(1);
+    private int grayWidth;
+    private int grayHeight;
+    private long lastAnalyzed = -1;
+    /**
+     * Whether the current connection delivered a packet, so a lost stream is retried without delay growth.
+     */
+    private boolean received = false;
+
+    private swresample.SwrContext resampler = null;
+    private ShortPointer monoPointer = null;
+    private ShortBuffer monoBuffer = null;
+    private final PointerPointer monoData = new PointerPointer(1);
+    private int monoCapacity = 0;
+
+    public LiveAnalyzer(Supplier<? extends PacketGrabber> grabberSupplier, Listener listener) {
+        Objects.requireNonNull(grabberSupplier);
+        Objects.requireNonNull(listener);
+        this.grabberSupplier = grabberSupplier;
+        this.listener = listener;
+    }
+
+    public List<StreamingTrigger> getTriggers() {
+        return triggers;
+    }
+
+    /**
+     * Width of the gray plane given to triggers, the height keeps the aspect ratio. Applied on the next start.
+     */
+    public void setAnalysisWidth(int analysisWidth) {
+        if (analysisWidth < 8) {
+            throw new IllegalArgumentException("Analysis width is less than 8.");
+        }
+        this.analysisWidth = analysisWidth;
+    }
+
+    /**
+     * @param analysisInterval In microseconds, minimal time between analyzed video frames.
+     */
+    public void setAnalysisInterval(long analysisInterval) {
+        if (analysisInterval < 0) {
+            throw new IllegalArgumentException("Analysis interval is negative.");
+        }
+        this.analysisInterval = analysisInterval;
+    }
+
+    @Override
+    public void run() throws Exception {
+        runPacket();
+    }
+
+    /**
+     * Analyzes until stopped, reconnecting with growing delays when the stream is lost.
+     */
+    @Override
+    public void runPacket() throws Exception {
+        long delay = RESTART_DELAY;
+        while (!isStoping()) {
+            try {
+                analyze();
+            } catch (Exception e) {
+                if (isStoping()) {
+                    break;
+                }
+                if (received) {
+                    delay = RESTART_DELAY;
+                }
+                LOG.log(Level.WARNING, String.format("Live analysis is interrupted, restart in %d ms.", delay), e);
+                listener.onStreamLost();
+                sleep(delay);
+                delay = Math.min(delay * 2, MAX_RESTART_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Analyzes one connection until stopped, throws when the stream is lost.
+     */
+    private void analyze() throws Exception {
+        boolean needVideo = false;
+        boolean needAudio = false;
+        for (StreamingTrigger trigger : triggers) {
+            needVideo |= MediaType.VIDEO.isCompatible(trigger.getMediaType());
+            needAudio |= MediaType.AUDIO.isCompatible(trigger.getMediaType());
+            trigger.reset();
+        }
+        lastAnalyzed = -1;
+        received = false;
+
+        PacketGrabber grabber = grabberSupplier.get();
+        grabber.start();
+        LiveDecoder videoDecoder = null;
+        LiveDecoder audioDecoder = null;
+        try {
+            avformat.AVFormatContext formatContext = grabber.getFormatContext();
+            int videoStreamIndex = PacketClock.findVideoStreamIndex(formatContext);
+            int audioStreamIndex = findAudioStreamIndex(formatContext);
+            if (needVideo && videoStreamIndex >= 0) {
+                videoDecoder = new LiveDecoder(formatContext.streams(videoStreamIndex));
+            }
+            if (needAudio && audioStreamIndex >= 0) {
+                audioDecoder = new LiveDecoder(formatContext.streams(audioStreamIndex));
+            }
+            if (videoDecoder == null && audioDecoder == null) {
+                throw new RuntimeException("No stream to analyze.");
+            }
+            PacketClock packetClock = new PacketClock(System.currentTimeMillis() * 1000);
+
+            while (!isStoping()) {
+                avcodec.AVPacket packet = grabber.grabPacket();
+                if (packet == null) {
+                    throw new RuntimeException("Stream is lost.");
+                }
+                received = true;
+                try {
+                    long timestamp = packetClock.timestamp(packet, formatContext);
+                    if (videoDecoder != null && packet.stream_index() == videoStreamIndex) {
+                        if (videoDecoder.send(packet)) {
+                            avutil.AVFrame frame;
+                            while ((frame = videoDecoder.receive()) != null) {
+                                analyzeVideo(frame, timestamp);
+                            }
+                        }
+                    } else if (audioDecoder != null && packet.stream_index() == audioStreamIndex) {
+                        if (audioDecoder.send(packet)) {
+                            avutil.AVFrame frame;
+                            while ((frame = audioDecoder.receive()) != null) {
+                                analyzeAudio(frame, timestamp);
+                            }
+                        }
+                    }
+                } finally {
+                    av_packet_unref(packet);
+                }
+            }
+        } finally {
+            if (videoDecoder != null) {
+                videoDecoder.release();
+            }
+            if (audioDecoder != null) {
+                audioDecoder.release();
+            }
+            releaseBuffers();
+            try {
+                grabber.stop();
+            } catch (Exception exception) {
+                LOG.log(Level.WARNING, "Can't stop grabber.", exception);
+            }
+        }
+    }
+
+    private void analyzeVideo(avutil.AVFrame frame, long timestamp) {
+        if (lastAnalyzed != -1 && timestamp - lastAnalyzed < analysisInterval) {
+            return;
+        }
+        lastAnalyzed = timestamp;
+
+        if (grayPointer == null) {
+            grayWidth = analysisWidth;
+            grayHeight = Math.max(2, (int) ((long) frame.height() * grayWidth / frame.width()) & ~1);
+            grayPointer = new BytePointer((long) grayWidth * grayHeight);
+            grayBuffer = grayPointer.asByteBuffer();
+            grayData.put(0, grayPointer);
+            grayLinesize.put(0, grayWidth);
+        }
+        /* Cached, so a resolution change of the camera rebuilds it */
+        scaler = sws_getCachedContext(scaler,
+                frame.width(), frame.height(), frame.format(),
+                grayWidth, grayHeight, AV_PIX_FMT_GRAY8,
+                SWS_AREA, null, null, (double[]) null);
+        if (scaler == null) {
+            throw new RuntimeException("Can't create scaler.");
+        }
+        sws_scale(scaler, frame.data(), frame.linesize(), 0, frame.height(), grayData, grayLinesize);
+
+        for (StreamingTrigger trigger : triggers) {
+            if (MediaType.VIDEO.isCompatible(trigger.getMediaType())) {
+                grayBuffer.clear();
+                if (trigger.onVideoFrame(grayBuffer, grayWidth, grayHeight, timestamp)) {
+                    listener.onActivity(trigger, timestamp);
+                }
+            }
+        }
+        listener.onAnalyzed(timestamp);
+    }
+
+    private void analyzeAudio(avutil.AVFrame frame, long timestamp) {
+        if (resampler == null) {
+            long channelLayout = frame.channel_layout() != 0 ? frame.channel_layout() : av_get_default_channel_layout(frame.channels());
+            resampler = swr_alloc_set_opts(null,
+                    AV_CH_LAYOUT_MONO, AV_SAMPLE_FMT_S16, frame.sample_rate(),
+                    channelLayout, frame.format(), frame.sample_rate(),
+                    0, null);
+            if (resampler == null || swr_init(resampler) < 0) {
+                throw new RuntimeException("Can't create resampler.");
+            }
+        }
+        int capacity = swr_get_out_samples(resampler, frame.nb_samples());
+        if (capacity > monoCapacity) {
+            if (monoPointer != null) {
+                monoPointer.deallocate();
+            }
+            monoPointer = new ShortPointer(capacity);
+            monoBuffer = monoPointer.asByteBuffer().asShortBuffer();
+            monoData.put(0, monoPointer);
+            monoCapacity = capacity;
+        }
+        int samples = swr_convert(resampler, monoData, monoCapacity, frame.extended_data(), frame.nb_samples());
+        if (samples <= 0) {
+            return;
+        }
+
+        for (StreamingTrigger trigger : triggers) {
+            if (MediaType.AUDIO.isCompatible(trigger.getMediaType())) {
+                monoBuffer.clear();
+                monoBuffer.limit(samples);
+                if (trigger.onAudioSamples(monoBuffer, frame.sample_rate(), timestamp)) {
+                    listener.onActivity(trigger, timestamp);
+                }
+            }
+        }
+        listener.onAnalyzed(timestamp);
+    }
+
+    private void releaseBuffers() {
+        if (scaler != null) {
+            sws_freeContext(scaler);
+            scaler = null;
+        }
+        if (grayPointer != null) {
+            grayPointer.deallocate();
+            grayPointer = null;
+            grayBuffer = null;
+        }
+        if (resampler != null) {
+            swr_free(resampler);
+            resampler = null;
+        }
+        if (monoPointer != null) {
+            monoPointer.deallocate();
+            monoPointer = null;
+            monoBuffer = null;
+            monoCapacity = 0;
+        }
+    }
+
+    private static int findAudioStreamIndex(avformat.AVFormatContext formatContext) {
+        for (int i = 0; i < formatContext.nb_streams(); i++) {
+            if (formatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_AUDIO) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String getName() {
+        return "live-analyzer";
+    }
+}
@@ -0,0 +1,92 @@
+package recorder.engine.live_analyzer;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avutil;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Decoder of one stream of copied packets, a received frame is valid until the next receive.
+ */
+public class LiveDecoder {
+
+    private avcodec.AVCodecContext codecContext = null;
+    private avutil.AVFrame frame = null;
+
+    public LiveDecoder(avformat.AVStream stream) throws Exception {
+        this(stream, null);
+    }
+
+    /**
+     * @param options Decoder options, e.g. "flags2" "+export_mvs", null for none. Unused entries stay in it.
+     */
+    public LiveDecoder(avformat.AVStream stream, avutil.AVDictionary options) throws Exception {
+        avcodec.AVCodec codec = avcodec_find_decoder(stream.codecpar().codec_id());
+        if (codec == null) {
+            throw new Exception("No decoder for codec " + stream.codecpar().codec_id() + ".");
+        }
+        codecContext = avcodec_alloc_context3(codec);
+        if (codecContext == null) {
+            throw new Exception("Can't allocate decoder context.");
+        }
+        try {
+            if (avcodec_parameters_to_context(codecContext, stream.codecpar()) < 0) {
+                throw new Exception("Can't copy stream parameters to decoder.");
+            }
+            codecContext.pkt_timebase(stream.time_base());
+            if (avcodec_open2(codecContext, codec, options) < 0) {
+                throw new Exception("Can't open decoder.");
+            }
+            frame = av_frame_alloc();
+        } catch (Exception e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param discard One of AVDISCARD_*, e.g. AVDISCARD_NONKEY to decode key frames only.
+     */
+    public void setSkipFrame(int discard) {
+        codecContext.skip_frame(discard);
+    }
+
+    /**
+     * @return false if the decoder rejected the packet, e.g. a corrupt one.
+     */
+    public boolean send(avcodec.AVPacket packet) {
+        return avcodec_send_packet(codecContext, packet) >= 0;
+    }
+
+    /**
+     * Signals the end of the packets, the frames still held by the decoder are then received.
+     */
+    public void drain() {
+        avcodec_send_packet(codecContext, null);
+    }
+
+    /**
+     * @return Next decoded frame of the sent packets, null if it needs more packets.
+     */
+    public avutil.AVFrame receive() {
+        return avcodec_receive_frame(codecContext, frame) >= 0 ? frame : null;
+    }
+
+    public avcodec.AVCodecContext getCodecContext() {
+        return codecContext;
+    }
+
+    public void release() {
+        if (frame != null) {
+            av_frame_free(frame);
+            frame = null;
+        }
+        if (codecContext != null) {
+            avcodec_free_context(codecContext);
+            codecContext = null;
+        }
+    }
+
+}
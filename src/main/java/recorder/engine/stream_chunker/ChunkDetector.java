@@ -74,18 +74,25 @@ public class ChunkDetector {
         lastTimestamp = frameTimestamp;
     }
 
-    public void nextPacket(long frameTimestamp) throws Exception {
-        if (chunksNum == 0 || frameTimestamp - chunkBegin > chunkDuration) {
+    /**
+     * Same as {@link #next(boolean, long)}, but also cuts on a key packet if the stream clock jumped back.
+     *
+     * @param isKeyPacket    Key packet of the video stream, chunks start only on these.
+     * @param packetTimestamp In microseconds.
+     */
+    public void nextPacket(boolean isKeyPacket, long packetTimestamp) throws Exception {
+        if (chunksNum == 0
+                || isKeyPacket && (packetTimestamp - chunkBegin > chunkDuration || packetTimestamp < chunkBegin)) {
             if (chunksNum != 0 && chunkListener != null) {
                 chunkListener.onChunkEnd();
             }
             chunksNum++;
-            chunkBegin = frameTimestamp;
+            chunkBegin = packetTimestamp;
             if (chunkListener != null) {
                 chunkListener.onChunkBegin();
             }
         }
-        lastTimestamp = frameTimestamp;
+        lastTimestamp = packetTimestamp;
     }
 
     public void reset() {
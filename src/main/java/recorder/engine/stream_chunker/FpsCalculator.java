@@ -1,14 +1,42 @@
 package recorder.engine.stream_chunker;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
+/**
+ * Streaming frame rate estimator with bounded memory.
+ * Keeps a ring of the latest gaps between timestamps and a log-scale histogram of them,
+ * so adding a timestamp is O(1) and queries don't depend on the stream length.
+ */
 public class FpsCalculator {
 
-    private final List<Long> timestamps = new ArrayList<>(60);
-    private double fps = Double.NaN;
+    /**
+     * Number of latest gaps taken into account.
+     */
+    private static final int WINDOW = 256;
     private static final double GAP_DEVIATION_RATIO = 0.1;
+    private static final double LOG_BUCKET_RATIO = Math.log(1 + GAP_DEVIATION_RATIO);
+    /**
+     * In microseconds, gaps out of [MIN_GAP, MAX_GAP] are clamped into the first/last bucket.
+     */
+    private static final long MIN_GAP = 1000;
+    private static final long MAX_GAP = 10000000;
+    private static final int BUCKETS = bucket(MAX_GAP) + 1;
+    /**
+     * A gap this many times longer than the dominant one is counted as dropped frames.
+     */
+    private static final double DROP_RATIO = 1.5;
+
+    private final long[] gaps = new long[WINDOW];
+    private final int[] gapBuckets = new int[WINDOW];
+    private int gapsHead = 0;
+    private int gapsNum = 0;
+    private final int[] bucketCounts = new int[BUCKETS];
+    private final long[] bucketSums = new long[BUCKETS];
+    private long gapsSum = 0;
+    private double gapsSquaresSum = 0;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private int timestampsNum = 0;
+    private double fps = Double.NaN;
 
     public FpsCalculator() {
     }
@@ -17,60 +45,138 @@ public class FpsCalculator {
      * @param timestamp In microseconds.
      */
     public void addTimestamp(long timestamp) {
+        timestampsNum++;
+        long previous = lastTimestamp;
+        lastTimestamp = timestamp;
+        if (previous == Long.MIN_VALUE || timestamp <= previous) {
+            // First timestamp, duplicate or reordered one: there is no gap.
+            return;
+        }
         fps = Double.NaN;
-        timestamps.add(timestamp);
+        long gap = timestamp - previous;
+        if (gapsNum == WINDOW) {
+            removeGap(gapsHead);
+        } else {
+            gapsNum++;
+        }
+        int bucket = bucket(gap);
+        gaps[gapsHead] = gap;
+        gapBuckets[gapsHead] = bucket;
+        bucketCounts[bucket]++;
+        bucketSums[bucket] += gap;
+        gapsSum += gap;
+        gapsSquaresSum += (double) gap * gap;
+        gapsHead = (gapsHead + 1) % WINDOW;
+    }
+
+    private void removeGap(int index) {
+        long gap = gaps[index];
+        int bucket = gapBuckets[index];
+        bucketCounts[bucket]--;
+        bucketSums[bucket] -= gap;
+        gapsSum -= gap;
+        gapsSquaresSum -= (double) gap * gap;
     }
 
     /**
-     * @return In microseconds.
+     * @return Frames per second of the dominant gap.
      */
     public double getFps() {
-        if (timestamps.size() < 2) {
+        if (gapsNum < 1) {
             return 15;
 //            throw new IllegalStateException("Not enough data.");
         }
         if (Double.isNaN(fps)) {
-            double[] gaps = new double[timestamps.size() - 1];
-            for (int i = 1; i < timestamps.size(); i++) {
-                gaps[i - 1] = timestamps.get(i) - timestamps.get(i - 1);
-            }
+            fps = 1000000 / getFrameInterval();
+        }
+        return fps;
+    }
 
-            int[] similarGapOccurrences = new int[gaps.length];
-            Arrays.fill(similarGapOccurrences, 0);
-            for (int i = 0; i < gaps.length; i++) {
-                for (int j = 0; j < gaps.length; j++) {
-                    if (Math.abs(gaps[i] - gaps[j]) < gaps[i] * GAP_DEVIATION_RATIO) {
-                        similarGapOccurrences[i]++;
-                    }
-                }
+    /**
+     * Mean of the most frequent gaps, gaps within GAP_DEVIATION_RATIO of each other are treated as similar.
+     *
+     * @return In microseconds, NaN if there are no gaps yet.
+     */
+    public double getFrameInterval() {
+        if (gapsNum < 1) {
+            return Double.NaN;
+        }
+        int maxOccurrences = 0;
+        int dominantBucket = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            int occurrences = neighbourhood(bucketCounts, i);
+            if (occurrences > maxOccurrences) {
+                maxOccurrences = occurrences;
+                dominantBucket = i;
             }
+        }
+        long sum = 0;
+        for (int i = Math.max(0, dominantBucket - 1); i <= Math.min(BUCKETS - 1, dominantBucket + 1); i++) {
+            sum += bucketSums[i];
+        }
+        return (double) sum / maxOccurrences;
+    }
 
-            int maxOccurrences = 0;
-            for (int i = 0; i < similarGapOccurrences.length; i++) {
-                maxOccurrences = Math.max(maxOccurrences, similarGapOccurrences[i]);
-            }
-            if (maxOccurrences == 0) {
-                throw new RuntimeException("No similar gaps.");
-            }
+    /**
+     * @return Standard deviation of the gaps in microseconds.
+     */
+    public double getJitter() {
+        if (gapsNum < 2) {
+            return 0;
+        }
+        double mean = (double) gapsSum / gapsNum;
+        return Math.sqrt(Math.max(0, gapsSquaresSum / gapsNum - mean * mean));
+    }
 
-            for (int i = 0; i < similarGapOccurrences.length; i++) {
-                if (similarGapOccurrences[i] == maxOccurrences) {
-                    fps = 1000000 / gaps[i];
-                    break;
-                }
+    /**
+     * @return Estimated number of frames missing within the window.
+     */
+    public long getDroppedFrames() {
+        double interval = getFrameInterval();
+        if (Double.isNaN(interval)) {
+            return 0;
+        }
+        long dropped = 0;
+        for (int i = bucket(Math.round(interval * DROP_RATIO)); i < BUCKETS; i++) {
+            if (bucketCounts[i] > 0) {
+                dropped += Math.max(0, Math.round(bucketSums[i] / interval) - bucketCounts[i]);
             }
         }
-        return fps;
-
+        return dropped;
     }
 
     public int getTimestampsNum() {
-        return timestamps.size();
+        return timestampsNum;
     }
 
     public void reset() {
-        timestamps.clear();
+        gapsHead = 0;
+        gapsNum = 0;
+        Arrays.fill(bucketCounts, 0);
+        Arrays.fill(bucketSums, 0);
+        gapsSum = 0;
+        gapsSquaresSum = 0;
+        lastTimestamp = Long.MIN_VALUE;
+        timestampsNum = 0;
         fps = Double.NaN;
     }
 
+    private static int neighbourhood(int[] counts, int bucket) {
+        int sum = counts[bucket];
+        if (bucket > 0) {
+            sum += counts[bucket - 1];
+        }
+        if (bucket < counts.length - 1) {
+            sum += counts[bucket + 1];
+        }
+        return sum;
+    }
+
+    private static int bucket(long gap) {
+        if (gap <= MIN_GAP) {
+            return 0;
+        }
+        return (int) (Math.log((double) Math.min(gap, MAX_GAP) / MIN_GAP) / LOG_BUCKET_RATIO);
+    }
+
 }
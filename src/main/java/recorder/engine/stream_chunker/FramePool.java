@@ -0,0 +1,250 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacv.Frame;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Thread safe.
+ *
+ * Pool of frame copies with reusable native buffers, bounded by a byte budget.
+ * Copies returned to the pool keep their buffers, so the next copy of the same size allocates nothing.
+ * Shared by all chunkers by default, so a reconnect storm across many cameras can't hold more than the budget.
+ */
+public class FramePool {
+
+    public final static long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final FramePool SHARED = new FramePool(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    private final ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+    private long allocatedBytes = 0;
+    private int usedSlots = 0;
+
+    public FramePool(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Pool budget is less than one byte.");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public static FramePool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return Copy of the frame, or null if it doesn't fit in the budget.
+     * Must be given back with {@link #recycle(Frame)}.
+     */
+    public synchronized Frame copy(Frame source) {
+        long required = bytesOf(source.image) + bytesOf(source.samples);
+        Slot slot = freeSlots.pollFirst();
+        if (slot == null) {
+            slot = new Slot();
+        }
+        if (slot.capacity < required) {
+            /* Smaller idle copies, e.g. of another resolution, make room first */
+            while (allocatedBytes - slot.capacity + required > maxBytes && !freeSlots.isEmpty()) {
+                freeSlots.pollLast().deallocate();
+            }
+            if (allocatedBytes - slot.capacity + required > maxBytes) {
+                if (slot.capacity > 0) {
+                    freeSlots.addFirst(slot);
+                }
+                return null;
+            }
+            slot.allocate(required);
+        }
+        usedSlots++;
+        slot.copy(source);
+        return slot.frame;
+    }
+
+    /**
+     * Gives a copy back to the pool, the frame must not be used afterwards.
+     */
+    public synchronized void recycle(Frame frame) {
+        if (frame == null || !(frame.opaque instanceof Slot)) {
+            return;
+        }
+        Slot slot = (Slot) frame.opaque;
+        frame.image = null;
+        frame.samples = null;
+        usedSlots--;
+        freeSlots.addFirst(slot);
+    }
+
+    /**
+     * Frees the buffers of the copies in the pool, copies still in use are kept.
+     */
+    public synchronized void trim() {
+        Slot slot;
+        while ((slot = freeSlots.pollFirst()) != null) {
+            slot.deallocate();
+        }
+    }
+
+    /**
+     * @return Native bytes held by the pool, including copies in use.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getUsedFrames() {
+        return usedSlots;
+    }
+
+    public synchronized int getFreeFrames() {
+        return freeSlots.size();
+    }
+
+    private static long bytesOf(Buffer[] buffers) {
+        long bytes = 0;
+        if (buffers != null) {
+            for (Buffer buffer : buffers) {
+                if (buffer != null) {
+                    bytes += (long) buffer.capacity() * elementSize(buffer);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static int elementSize(Buffer buffer) {
+        if (buffer instanceof ByteBuffer) {
+            return 1;
+        } else if (buffer instanceof ShortBuffer) {
+            return 2;
+        } else if (buffer instanceof IntBuffer || buffer instanceof FloatBuffer) {
+            return 4;
+        } else if (buffer instanceof LongBuffer || buffer instanceof DoubleBuffer) {
+            return 8;
+        }
+        throw new IllegalArgumentException("Unsupported buffer " + buffer.getClass().getName());
+    }
+
+    /**
+     * One contiguous native block holding all planes of a copy.
+     */
+    private class Slot {
+
+        final Frame frame = new Frame();
+        BytePointer memory = null;
+        ByteBuffer block = null;
+        long capacity = 0;
+
+        Slot() {
+            frame.opaque = this;
+        }
+
+        void allocate(long bytes) {
+            deallocate();
+            memory = new BytePointer(bytes);
+            block = memory.asByteBuffer().order(ByteOrder.nativeOrder());
+            capacity = bytes;
+            allocatedBytes += bytes;
+        }
+
+        void deallocate() {
+            if (memory != null) {
+                memory.deallocate();
+                allocatedBytes -= capacity;
+                memory = null;
+                block = null;
+                capacity = 0;
+            }
+        }
+
+        void copy(Frame source) {
+            frame.keyFrame = source.keyFrame;
+            frame.imageWidth = source.imageWidth;
+            frame.imageHeight = source.imageHeight;
+            frame.imageDepth = source.imageDepth;
+            frame.imageChannels = source.imageChannels;
+            frame.imageStride = source.imageStride;
+            frame.audioChannels = source.audioChannels;
+            frame.sampleRate = source.sampleRate;
+            frame.timestamp = source.timestamp;
+            int offset = 0;
+            frame.image = null;
+            if (source.image != null) {
+                frame.image = new Buffer[source.image.length];
+                offset = copyPlanes(source.image, frame.image, offset);
+            }
+            frame.samples = null;
+            if (source.samples != null) {
+                frame.samples = new Buffer[source.samples.length];
+                copyPlanes(source.samples, frame.samples, offset);
+            }
+        }
+
+        private int copyPlanes(Buffer[] source, Buffer[] target, int offset) {
+            for (int i = 0; i < source.length; i++) {
+                Buffer plane = source[i];
+                if (plane == null) {
+                    continue;
+                }
+                int bytes = plane.capacity() * elementSize(plane);
+                block.limit(offset + bytes).position(offset);
+                ByteBuffer bytePlane = block.slice().order(ByteOrder.nativeOrder());
+                block.clear();
+                target[i] = copyPlane(plane, bytePlane);
+                offset += bytes;
+            }
+            return offset;
+        }
+
+        private Buffer copyPlane(Buffer source, ByteBuffer target) {
+            if (source instanceof ByteBuffer) {
+                ByteBuffer from = ((ByteBuffer) source).duplicate();
+                from.clear();
+                target.put(from).clear();
+                return target;
+            } else if (source instanceof ShortBuffer) {
+                ShortBuffer from = ((ShortBuffer) source).duplicate();
+                from.clear();
+                ShortBuffer to = target.asShortBuffer();
+                to.put(from).clear();
+                return to;
+            } else if (source instanceof IntBuffer) {
+                IntBuffer from = ((IntBuffer) source).duplicate();
+                from.clear();
+                IntBuffer to = target.asIntBuffer();
+                to.put(from).clear();
+                return to;
+            } else if (source instanceof FloatBuffer) {
+                FloatBuffer from = ((FloatBuffer) source).duplicate();
+                from.clear();
+                FloatBuffer to = target.asFloatBuffer();
+                to.put(from).clear();
+                return to;
+            } else if (source instanceof LongBuffer) {
+                LongBuffer from = ((LongBuffer) source).duplicate();
+                from.clear();
+                LongBuffer to = target.asLongBuffer();
+                to.put(from).clear();
+                return to;
+            }
+            DoubleBuffer from = ((DoubleBuffer) source).duplicate();
+            from.clear();
+            DoubleBuffer to = target.asDoubleBuffer();
+            to.put(from).clear();
+            return to;
+        }
+    }
+}
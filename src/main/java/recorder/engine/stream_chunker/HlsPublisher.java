@@ -0,0 +1,286 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.avcodec;
+import recorder.common.Executor;
+import recorder.engine.stream_chunker.segment_formats.MpegTs;
+import recorder.engine.stream_chunker.simplified_grabber.PacketGrabber;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+
+/**
+ * Publishes a rolling HLS playlist of MPEG-TS segments from copied packets.
+ * Segments are cut on key packets, every segment and playlist update appears atomically by rename.
+ * A lost stream is reconnected with growing delays, the playlist goes on with a discontinuity.
+ * Segment numbers keep growing across restarts, segments left by a previous publisher in the directory are deleted.
+ */
+public class HlsPublisher extends Executor {
+
+    private static final Logger LOG = Logger.getLogger(HlsPublisher.class.getName());
+
+    public static final String PLAYLIST_NAME = "index.m3u8";
+    /**
+     * In microseconds.
+     */
+    public final static long DEFAULT_SEGMENT_DURATION = 4000000;
+    public final static int DEFAULT_PLAYLIST_SIZE = 6;
+    /**
+     * In milliseconds, doubled after every failed attempt up to the max.
+     */
+    private final static long RESTART_DELAY = 1000;
+    private final static long MAX_RESTART_DELAY = 60000;
+    private final static Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.ts(" + Pattern.quote(SegmentWriter.PART_SUFFIX) + ")?");
+
+    private final Supplier<? extends PacketGrabber> grabberSupplier;
+    private final File dir;
+    private final long segmentDuration;
+    private final int playlistSize;
+    private final SegmentFormat segmentFormat = new MpegTs();
+    private final ArrayDeque<Segment> playlist = new ArrayDeque<>();
+    /**
+     * Segments out of the playlist, kept for a while for players that are still loading them.
+     */
+    private final ArrayDeque<Segment> expired = new ArrayDeque<>();
+    private long mediaSequence = 0;
+    private long discontinuitySequence = 0;
+    private long segmentNumber = 0;
+    private boolean leftoversRemoved = false;
+    /**
+     * Whether the next published segment follows a gap in the stream.
+     */
+    private boolean discontinuity = false;
+    /**
+     * Whether the current connection delivered a packet, so a lost stream is retried without delay growth.
+     */
+    private boolean received = false;
+
+    public HlsPublisher(Supplier<? extends PacketGrabber> grabberSupplier, File dir) {
+        this(grabberSupplier, dir, DEFAULT_SEGMENT_DURATION, DEFAULT_PLAYLIST_SIZE);
+    }
+
+    /**
+     * @param segmentDuration In microseconds.
+     * @param playlistSize    Number of segments in the playlist window.
+     */
+    public HlsPublisher(Supplier<? extends PacketGrabber> grabberSupplier, File dir, long segmentDuration, int playlistSize) {
+        Objects.requireNonNull(grabberSupplier);
+        Objects.requireNonNull(dir);
+        if (segmentDuration < 1000000) {
+            throw new IllegalArgumentException("Segment duration is less than one second.");
+        }
+        if (playlistSize < 1) {
+            throw new IllegalArgumentException("Playlist size is less than one.");
+        }
+        dir.mkdirs();
+        if (!dir.canWrite()) {
+            throw new RuntimeException("HLS directory isn't writable.");
+        }
+        this.grabberSupplier = grabberSupplier;
+        this.dir = dir;
+        this.segmentDuration = segmentDuration;
+        this.playlistSize = playlistSize;
+    }
+
+    @Override
+    public void run() throws Exception {
+        runPacket();
+    }
+
+    @Override
+    public void runPacket() throws Exception {
+        if (!leftoversRemoved) {
+            removeLeftovers();
+            leftoversRemoved = true;
+        }
+        if (!playlist.isEmpty()) {
+            /* Restarted, the ended playlist goes on */
+            discontinuity = true;
+        }
+        long delay = RESTART_DELAY;
+        while (!isStoping()) {
+            try {
+                publishConnection();
+            } catch (Exception e) {
+                if (isStoping()) {
+                    break;
+                }
+                if (received) {
+                    delay = RESTART_DELAY;
+                }
+                LOG.log(Level.WARNING, String.format("HLS publishing is interrupted, restart in %d ms.", delay), e);
+                discontinuity = true;
+                sleep(delay);
+                delay = Math.min(delay * 2, MAX_RESTART_DELAY);
+            }
+        }
+        if (!playlist.isEmpty()) {
+            writePlaylist(true);
+        }
+        LOG.log(Level.FINER, "HLS publisher is stopped.");
+    }
+
+    /**
+     * Publishes one connection until stopped, throws when the stream is lost.
+     */
+    private void publishConnection() throws Exception {
+        received = false;
+        PacketGrabber grabber = grabberSupplier.get();
+        grabber.start();
+        PacketClock clock = new PacketClock(System.currentTimeMillis() * 1000);
+        int videoStreamIndex = PacketClock.findVideoStreamIndex(grabber.getFormatContext());
+        SegmentWriter writer = null;
+        long segmentBegin = 0;
+        long lastTimestamp = 0;
+        try {
+            while (!isStoping()) {
+                avcodec.AVPacket packet = grabber.grabPacket();
+                if (packet == null) {
+                    throw new RuntimeException("Stream is lost.");
+                }
+                received = true;
+                boolean isKeyPacket = PacketClock.isKeyPacket(packet, videoStreamIndex);
+                if (writer == null && !isKeyPacket) {
+                    av_packet_unref(packet);
+                    continue;
+                }
+                long timestamp = clock.timestamp(packet, grabber.getFormatContext());
+                if (writer == null
+                        || isKeyPacket && (timestamp - segmentBegin >= segmentDuration || timestamp < segmentBegin)) {
+                    if (writer != null) {
+                        publish(writer.close(), timestamp - segmentBegin, false);
+                    }
+                    writer = new SegmentWriter(
+                            new File(dir, "segment-" + (segmentNumber++) + "." + segmentFormat.getExtension()),
+                            grabber,
+                            segmentFormat);
+                    writer.open();
+                    segmentBegin = timestamp;
+                }
+                lastTimestamp = timestamp;
+                writer.write(packet);
+            }
+        } finally {
+            try {
+                if (writer != null) {
+                    publish(writer.close(), lastTimestamp - segmentBegin, false);
+                }
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Can't close the last HLS segment.", e);
+            }
+            grabber.stop();
+        }
+    }
+
+    /**
+     * Deletes the playlist and segments of a previous publisher, numbering goes on after them
+     * so players holding the old playlist don't load other footage under a known name.
+     */
+    private void removeLeftovers() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            boolean segment = matcher.matches();
+            if (segment) {
+                segmentNumber = Math.max(segmentNumber, Long.parseLong(matcher.group(1)) + 1);
+            }
+            if (segment || file.getName().equals(PLAYLIST_NAME) || file.getName().equals(PLAYLIST_NAME + SegmentWriter.PART_SUFFIX)) {
+                if (!file.delete()) {
+                    LOG.log(Level.WARNING, "Can't delete leftover HLS file \"{0}\".", file.getAbsolutePath());
+                }
+            }
+        }
+        mediaSequence = segmentNumber;
+    }
+
+    /**
+     * @param duration In microseconds.
+     */
+    private void publish(File file, long duration, boolean end) throws IOException {
+        playlist.addLast(new Segment(file, Math.max(duration, 0) / 1000000d, discontinuity));
+        discontinuity = false;
+        while (playlist.size() > playlistSize) {
+            Segment segment = playlist.removeFirst();
+            expired.addLast(segment);
+            mediaSequence++;
+            if (segment.discontinuity) {
+                discontinuitySequence++;
+            }
+        }
+        writePlaylist(end);
+        while (expired.size() > playlistSize) {
+            File expiredFile = expired.removeFirst().file;
+            if (!expiredFile.delete()) {
+                LOG.log(Level.WARNING, "Can't delete expired HLS segment \"{0}\".", expiredFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private void writePlaylist(boolean end) throws IOException {
+        double targetDuration = segmentDuration / 1000000d;
+        for (Segment segment : playlist) {
+            targetDuration = Math.max(targetDuration, segment.duration);
+        }
+        StringBuilder m3u8 = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:").append((long) Math.ceil(targetDuration)).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        if (discontinuitySequence > 0) {
+            m3u8.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        }
+        for (Segment segment : playlist) {
+            if (segment.discontinuity) {
+                m3u8.append("#EXT-X-DISCONTINUITY\n");
+            }
+            m3u8.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", segment.duration))
+                    .append(segment.file.getName()).append('\n');
+        }
+        if (end) {
+            m3u8.append("#EXT-X-ENDLIST\n");
+        }
+        File playlistFile = new File(dir, PLAYLIST_NAME);
+        File tempFile = new File(dir, PLAYLIST_NAME + SegmentWriter.PART_SUFFIX);
+        Files.write(tempFile.toPath(), m3u8.toString().getBytes(StandardCharsets.US_ASCII));
+        SegmentWriter.moveAtomically(tempFile, playlistFile);
+    }
+
+    public File getPlaylistFile() {
+        return new File(dir, PLAYLIST_NAME);
+    }
+
+    @Override
+    public String getName() {
+        return "hls-publisher";
+    }
+
+    private static class Segment {
+
+        private final File file;
+        /**
+         * In seconds.
+         */
+        private final double duration;
+        private final boolean discontinuity;
+
+        Segment(File file, double duration, boolean discontinuity) {
+            this.file = file;
+            this.duration = duration;
+            this.discontinuity = discontinuity;
+        }
+    }
+}
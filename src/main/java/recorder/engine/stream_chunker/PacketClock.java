@@ -0,0 +1,65 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.javacpp.avutil.av_q2d;
+
+/**
+ * Maps the stream clock of copied packets onto the wall clock of the connection start.
+ */
+public class PacketClock {
+
+    private final long begin;
+    private long firstStreamTimestamp = -1;
+    private long lastTimestamp;
+
+    /**
+     * @param begin Wall clock of the first packet in microseconds.
+     */
+    public PacketClock(long begin) {
+        this.begin = begin;
+        this.lastTimestamp = begin;
+    }
+
+    /**
+     * @return In microseconds, the last known timestamp if the packet has no PTS nor DTS.
+     */
+    public long timestamp(avcodec.AVPacket packet, avformat.AVFormatContext formatContext) {
+        long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+        if (pts == AV_NOPTS_VALUE) {
+            return lastTimestamp;
+        }
+        double timeBase = av_q2d(formatContext.streams(packet.stream_index()).time_base());
+        long streamTimestamp = Math.round(pts * timeBase * 1000000);
+        if (firstStreamTimestamp == -1) {
+            firstStreamTimestamp = streamTimestamp;
+        }
+        lastTimestamp = begin + streamTimestamp - firstStreamTimestamp;
+        return lastTimestamp;
+    }
+
+    /**
+     * @param videoStreamIndex -1 if every packet starts a GOP (audio only streams).
+     */
+    public static boolean isKeyPacket(avcodec.AVPacket packet, int videoStreamIndex) {
+        return videoStreamIndex < 0
+                || packet.stream_index() == videoStreamIndex && (packet.flags() & AV_PKT_FLAG_KEY) != 0;
+    }
+
+    /**
+     * @return -1 if there is no video stream.
+     */
+    public static int findVideoStreamIndex(avformat.AVFormatContext formatContext) {
+        for (int i = 0; i < formatContext.nb_streams(); i++) {
+            if (formatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
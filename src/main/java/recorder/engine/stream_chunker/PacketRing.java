@@ -0,0 +1,185 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.avcodec;
+
+import static org.bytedeco.javacpp.avcodec.*;
+
+/**
+ * Bounded FIFO of ref-counted packets between the network reader and the muxer.
+ * Slots are allocated once, packets are referenced in on {@link #offer} and moved out on {@link #poll}.
+ *
+ * On overflow non-key video packets are dropped first, together with the rest of their GOP.
+ * A key packet that doesn't fit evicts the oldest GOP instead, so the ring always starts on a key packet.
+ *
+ * Thread safe.
+ */
+public class PacketRing {
+
+    private final avcodec.AVPacket[] slots;
+    private final boolean[] syncPoints;
+    private int head = 0;
+    private int size = 0;
+    private int videoStreamIndex = -1;
+    private boolean dropUntilKey = false;
+    private boolean closed = false;
+    private boolean released = false;
+
+    private long offeredPackets = 0;
+    private long droppedPackets = 0;
+    private int highWaterMark = 0;
+
+    public PacketRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity is less than one.");
+        }
+        slots = new avcodec.AVPacket[capacity];
+        syncPoints = new boolean[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = av_packet_alloc();
+        }
+    }
+
+    /**
+     * @param videoStreamIndex Stream whose key packets are GOP boundaries, -1 if every key packet is.
+     */
+    public synchronized void setVideoStreamIndex(int videoStreamIndex) {
+        this.videoStreamIndex = videoStreamIndex;
+    }
+
+    /**
+     * @param packet Stays owned by the caller, the ring takes its own reference.
+     * @return false if the packet was dropped.
+     */
+    public synchronized boolean offer(avcodec.AVPacket packet) {
+        if (released) {
+            throw new IllegalStateException("Ring is released.");
+        }
+        offeredPackets++;
+        boolean video = videoStreamIndex < 0 || packet.stream_index() == videoStreamIndex;
+        boolean key = (packet.flags() & AV_PKT_FLAG_KEY) != 0;
+        boolean syncPoint = video && key;
+
+        if (video) {
+            if (syncPoint) {
+                dropUntilKey = false;
+            } else if (dropUntilKey) {
+                droppedPackets++;
+                return false;
+            }
+        }
+
+        if (size == slots.length) {
+            if (!syncPoint) {
+                // Rest of the GOP can't be decoded without this packet.
+                dropUntilKey = video;
+                droppedPackets++;
+                return false;
+            }
+            dropOldestGop();
+        }
+
+        int tail = (head + size) % slots.length;
+        av_packet_ref(slots[tail], packet);
+        syncPoints[tail] = syncPoint;
+        size++;
+        highWaterMark = Math.max(highWaterMark, size);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Moves the oldest packet into target.
+     *
+     * @param target Packet to move the reference into, it should be unreferenced.
+     * @param timeout In milliseconds.
+     * @return false on timeout or if the ring is closed and empty.
+     */
+    public synchronized boolean poll(avcodec.AVPacket target, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (size == 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (closed || released || left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        av_packet_move_ref(target, slots[head]);
+        head = (head + 1) % slots.length;
+        size--;
+        return true;
+    }
+
+    /**
+     * No more packets will be offered, {@link #poll} returns what is left and then fails fast.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void clear() {
+        while (size > 0) {
+            av_packet_unref(slots[head]);
+            head = (head + 1) % slots.length;
+            size--;
+        }
+        head = 0;
+        dropUntilKey = false;
+    }
+
+    /**
+     * Frees native slots, the ring can't be used afterwards.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        clear();
+        for (avcodec.AVPacket slot : slots) {
+            av_packet_free(slot);
+        }
+        released = true;
+        notifyAll();
+    }
+
+    private void dropOldestGop() {
+        do {
+            av_packet_unref(slots[head]);
+            head = (head + 1) % slots.length;
+            size--;
+            droppedPackets++;
+        } while (size > 0 && !syncPoints[head]);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return Occupancy [0,1].
+     */
+    public synchronized double getOccupancy() {
+        return (double) size / slots.length;
+    }
+
+    public synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public synchronized long getOfferedPackets() {
+        return offeredPackets;
+    }
+
+    public synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+}
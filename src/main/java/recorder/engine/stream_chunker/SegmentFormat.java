@@ -0,0 +1,52 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.avutil;
+import recorder.engine.stream_chunker.segment_formats.FragmentedMp4;
+import recorder.engine.stream_chunker.segment_formats.Matroska;
+import recorder.engine.stream_chunker.segment_formats.MpegTs;
+
+/**
+ * Container of the segments written by {@link SegmentWriter} in packet copy mode.
+ */
+public interface SegmentFormat {
+
+    /**
+     * @return Muxer name known to ffmpeg.
+     */
+    public String getFormatName();
+
+    /**
+     * @return File extension without dot.
+     */
+    public String getExtension();
+
+    /**
+     * Adds muxer options before the header is written.
+     */
+    public default void configure(avutil.AVDictionary options) {
+    }
+
+    /**
+     * @return true if a segment being written (or cut short by a crash) is readable without its trailer,
+     * so a leftover ".part" file can be kept as is.
+     */
+    public default boolean isCrashTolerant() {
+        return true;
+    }
+
+    /**
+     * Looks the formats segments may have been written in up, whatever the current one is.
+     * Created on each call, a static list here would deadlock class initialization with the implementations.
+     *
+     * @param extension Without dot.
+     * @return null if no known format has the extension.
+     */
+    public static SegmentFormat forExtension(String extension) {
+        for (SegmentFormat format : new SegmentFormat[]{new FragmentedMp4(), new Matroska(), new MpegTs()}) {
+            if (format.getExtension().equals(extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
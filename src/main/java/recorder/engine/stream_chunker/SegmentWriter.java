@@ -0,0 +1,210 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avutil;
+import recorder.engine.stream_chunker.simplified_grabber.PacketGrabber;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Muxes copied packets straight into a segment of the given {@link SegmentFormat}.
+ * The segment is written under a ".part" name and atomically renamed on close,
+ * so a file with the final name is always complete.
+ *
+ * Packets are muxed with libavformat directly: FFmpegFrameRecorder.recordPacket of javacv 1.4 drops
+ * the timestamps, which is why segments used to be remuxed from AVI. Video and audio streams are copied
+ * with their timestamps rescaled, the other streams are skipped.
+ */
+public class SegmentWriter {
+
+    public static final String PART_SUFFIX = ".part";
+
+    private final File file;
+    private final File partFile;
+    private final PacketGrabber grabber;
+    private final SegmentFormat format;
+    private avformat.AVFormatContext outputContext = null;
+    /**
+     * Output stream of every input stream, -1 if skipped.
+     */
+    private int[] streamMap = null;
+    /**
+     * Last written decoding timestamp per output stream, kept increasing as the muxers require.
+     */
+    private long[] lastDts = null;
+
+    /**
+     * @param file    Final segment file.
+     * @param grabber Started grabber whose streams are copied.
+     */
+    public SegmentWriter(File file, PacketGrabber grabber, SegmentFormat format) {
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(grabber);
+        Objects.requireNonNull(format);
+        this.file = file;
+        this.partFile = new File(file.getPath() + PART_SUFFIX);
+        this.grabber = grabber;
+        this.format = format;
+    }
+
+    public void open() throws Exception {
+        if (outputContext != null) {
+            throw new IllegalStateException("Segment is already open.");
+        }
+        avformat.AVFormatContext inputContext = grabber.getFormatContext();
+        avformat.AVFormatContext context = new avformat.AVFormatContext(null);
+        if (avformat_alloc_output_context2(context, null, format.getFormatName(), partFile.getPath()) < 0 || context.isNull()) {
+            throw new Exception("Can't allocate muxer " + format.getFormatName() + ".");
+        }
+        outputContext = context;
+        avutil.AVDictionary options = new avutil.AVDictionary(null);
+        try {
+            int inputStreams = inputContext.nb_streams();
+            streamMap = new int[inputStreams];
+            int outputStreams = 0;
+            for (int i = 0; i < inputStreams; i++) {
+                avformat.AVStream inputStream = inputContext.streams(i);
+                int type = inputStream.codecpar().codec_type();
+                if (type != AVMEDIA_TYPE_VIDEO && type != AVMEDIA_TYPE_AUDIO) {
+                    streamMap[i] = -1;
+                    continue;
+                }
+                avformat.AVStream outputStream = avformat_new_stream(context, null);
+                if (outputStream == null || avcodec_parameters_copy(outputStream.codecpar(), inputStream.codecpar()) < 0) {
+                    throw new Exception("Can't copy stream " + i + ".");
+                }
+                /* The tag of the source container may be invalid in the segment's */
+                outputStream.codecpar().codec_tag(0);
+                outputStream.time_base(inputStream.time_base());
+                streamMap[i] = outputStreams++;
+            }
+            lastDts = new long[outputStreams];
+            Arrays.fill(lastDts, AV_NOPTS_VALUE);
+            if ((context.oformat().flags() & AVFMT_NOFILE) == 0) {
+                avformat.AVIOContext io = new avformat.AVIOContext(null);
+                if (avio_open(io, partFile.getPath(), AVIO_FLAG_WRITE) < 0) {
+                    throw new Exception(String.format("Can't open \"%s\".", partFile.getAbsolutePath()));
+                }
+                context.pb(io);
+            }
+            format.configure(options);
+            if (avformat_write_header(context, options) < 0) {
+                throw new Exception("Can't write header of " + format.getFormatName() + " segment.");
+            }
+        } catch (Exception e) {
+            release();
+            throw e;
+        } finally {
+            av_dict_free(options);
+        }
+    }
+
+    /**
+     * Takes the packet's data over, the packet is blank on return.
+     */
+    public void write(avcodec.AVPacket packet) throws Exception {
+        if (outputContext == null) {
+            throw new IllegalStateException("Segment isn't open.");
+        }
+        try {
+            int inputIndex = packet.stream_index();
+            int outputIndex = inputIndex >= 0 && inputIndex < streamMap.length ? streamMap[inputIndex] : -1;
+            if (outputIndex < 0) {
+                return;
+            }
+            if (packet.dts() == AV_NOPTS_VALUE) {
+                packet.dts(packet.pts());
+            }
+            if (packet.pts() == AV_NOPTS_VALUE) {
+                packet.pts(packet.dts());
+            }
+            packet.stream_index(outputIndex);
+            packet.pos(-1);
+            av_packet_rescale_ts(packet,
+                    grabber.getFormatContext().streams(inputIndex).time_base(),
+                    outputContext.streams(outputIndex).time_base());
+            long last = lastDts[outputIndex];
+            if (packet.dts() == AV_NOPTS_VALUE) {
+                if (last == AV_NOPTS_VALUE) {
+                    /* Nothing to place it after */
+                    return;
+                }
+                packet.dts(last + 1);
+                packet.pts(last + 1);
+            } else if (last != AV_NOPTS_VALUE && packet.dts() <= last) {
+                packet.pts(Math.max(packet.pts(), last + 1));
+                packet.dts(last + 1);
+            }
+            lastDts[outputIndex] = packet.dts();
+            if (av_interleaved_write_frame(outputContext, packet) < 0) {
+                throw new Exception("Can't write packet to segment.");
+            }
+        } finally {
+            av_packet_unref(packet);
+        }
+    }
+
+    /**
+     * @return Final segment file.
+     */
+    public File close() throws Exception {
+        if (outputContext == null) {
+            throw new IllegalStateException("Segment isn't open.");
+        }
+        int result;
+        try {
+            result = av_write_trailer(outputContext);
+        } finally {
+            release();
+        }
+        if (result < 0) {
+            throw new Exception("Can't write trailer of " + format.getFormatName() + " segment.");
+        }
+        moveAtomically(partFile, file);
+        return file;
+    }
+
+    private void release() {
+        if (outputContext != null) {
+            if ((outputContext.oformat().flags() & AVFMT_NOFILE) == 0 && outputContext.pb() != null) {
+                avio_close(outputContext.pb());
+                outputContext.pb(null);
+            }
+            avformat_free_context(outputContext);
+            outputContext = null;
+        }
+        streamMap = null;
+        lastDts = null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public SegmentFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Falls back to a plain move if source and target are on different file stores.
+     */
+    public static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
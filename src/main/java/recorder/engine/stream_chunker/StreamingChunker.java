@@ -3,43 +3,88 @@ package recorder.engine.stream_chunker;
 import org.bytedeco.javacpp.avcodec;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import recorder.common.Executor;
+import recorder.engine.stream_chunker.segment_formats.FragmentedMp4;
+import recorder.engine.stream_chunker.simplified_grabber.PacketGrabber;
 import recorder.engine.stream_chunker.simplified_grabber.SimplifiedGrabber;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
 import java.util.Objects;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avutil.*;
 
 public class StreamingChunker {
 
     private Logger LOG = Logger.getLogger(StreamingChunker.class.getName());
 
     private final static long MIN_CHUNK_DURATION = 20000000;
+    public final static int DEFAULT_PACKET_RING_CAPACITY = 512;
+    /**
+     * In milliseconds.
+     */
+    private final static long PACKET_POLL_TIMEOUT = 1000;
+    /**
+     * In microseconds.
+     */
+    public final static long DEFAULT_PROBE_DURATION = 500000;
+    private final static int MAX_PROBE_FRAMES = 100;
+    private final static int MAX_PROBE_PACKETS = 100;
 
     private Consumer<File> chunkHandler = null;
     private final FpsCalculator fpsCalculator = new FpsCalculator();
     private final ChunkDetector chunkDetector;
     private boolean hasVideo = false;
     private double fps = 20;
-    private final Supplier<SimplifiedGrabber> grabberSupplier;
-    private SimplifiedGrabber grabber = null;
+    private final Supplier<? extends PacketGrabber> grabberSupplier;
+    /**
+     * Null if the chunker reads packets only, see {@link #forPackets(Supplier, File, long)}.
+     */
+    private final Supplier<? extends SimplifiedGrabber> frameGrabberSupplier;
+    private PacketGrabber grabber = null;
+    private SimplifiedGrabber frameGrabber = null;
     private FFmpegFrameRecorder recorder = null;
-    private final List<Frame> probeFrames = new ArrayList<>();
-    private final List<avcodec.AVPacket> probePackets = new ArrayList<>();
+    private SegmentWriter segmentWriter = null;
+    private boolean packetMode = false;
+    private volatile SegmentFormat segmentFormat = new FragmentedMp4();
+    private long probeDuration = DEFAULT_PROBE_DURATION;
+    private FramePool framePool = FramePool.shared();
+    private final ArrayDeque<Frame> probeFrames = new ArrayDeque<>();
+    /**
+     * Grabber frame which didn't fit in the pool, valid until the next grab.
+     */
+    private Frame pendingFrame = null;
+    private final ArrayDeque<avcodec.AVPacket> probePackets = new ArrayDeque<>();
     private boolean started = false;
     private long begin = -1;
+    private int packetRingCapacity = DEFAULT_PACKET_RING_CAPACITY;
+    private volatile PacketRing packetRing = null;
+    private PacketReader packetReader = null;
+    private avcodec.AVPacket writePacket = null;
+    private int videoStreamIndex = -1;
+    private PacketClock packetClock = null;
 
     public StreamingChunker(Supplier<SimplifiedGrabber> grabberSupplier, File targetDir) {
         this(grabberSupplier, targetDir, MIN_CHUNK_DURATION);
     }
 
     public StreamingChunker(Supplier<SimplifiedGrabber> grabberSupplier, File targetDir, long duration) {
+        this(grabberSupplier, grabberSupplier, targetDir, duration);
+    }
+
+    /**
+     * @return Chunker recording in packet mode only, {@link #start()} fails.
+     */
+    public static StreamingChunker forPackets(Supplier<? extends PacketGrabber> grabberSupplier, File targetDir, long duration) {
+        return new StreamingChunker(grabberSupplier, null, targetDir, duration);
+    }
+
+    private StreamingChunker(Supplier<? extends PacketGrabber> grabberSupplier, Supplier<? extends SimplifiedGrabber> frameGrabberSupplier, File targetDir, long duration) {
         Objects.requireNonNull(grabberSupplier);
         Objects.requireNonNull(targetDir);
         if (duration < MIN_CHUNK_DURATION) {
@@ -51,6 +96,7 @@ public class StreamingChunker {
             throw new RuntimeException("Target directory isn't writable.");
         }
         this.grabberSupplier = grabberSupplier;
+        this.frameGrabberSupplier = frameGrabberSupplier;
         chunkDetector = new ChunkDetector(duration);
         chunkDetector.setChunkListener(new ChunkListener() {
 
@@ -58,6 +104,14 @@ public class StreamingChunker {
 
             @Override
             public void onChunkBegin() throws Exception {
+                if (packetMode) {
+                    segmentWriter = new SegmentWriter(
+                            new File(targetDir, chunkDetector.getChunkBegin() + "." + segmentFormat.getExtension()),
+                            grabber,
+                            segmentFormat);
+                    segmentWriter.open();
+                    return;
+                }
 //                if (hasVideo) {
 //                    fps = Math.round(fpsCalculator.getFps() * 100) / 100d;
 //                    fpsCalculator.reset();
@@ -94,6 +148,15 @@ public class StreamingChunker {
 
             @Override
             public void onChunkEnd() throws Exception {
+                if (packetMode) {
+                    outputFile = segmentWriter.close();
+                    segmentWriter = null;
+                    if (chunkHandler != null) {
+                        chunkHandler.accept(outputFile);
+                    }
+                    outputFile = null;
+                    return;
+                }
                 recorder.stop();
                 recorder.release();
                 if (chunkHandler != null) {
@@ -105,13 +168,31 @@ public class StreamingChunker {
     }
 
     public void start() throws Exception {
-        for (int pfn = 0, vfn = 0; pfn < 100 && vfn < 10; pfn++) {
-            Frame frame = grab().clone();
+        if (frameGrabberSupplier == null) {
+            throw new IllegalStateException("Chunker reads packets only.");
+        }
+        long firstTimestamp = -1;
+        for (int pfn = 0; pfn < MAX_PROBE_FRAMES; pfn++) {
+            Frame frame = grab();
+            if (frame == null) {
+                break;
+            }
             if (frame.image != null) {
                 hasVideo = true;
-                vfn++;
             }
-            probeFrames.add(frame);
+            /* The grabber reuses its frame, so keep a pooled copy until next() records it */
+            Frame copy = framePool.copy(frame);
+            if (copy == null) {
+                LOG.log(Level.FINE, "Frame pool is exhausted, probe cut short.");
+                pendingFrame = frame;
+                break;
+            }
+            probeFrames.addLast(copy);
+            if (firstTimestamp < 0) {
+                firstTimestamp = frame.timestamp;
+            } else if (frame.timestamp - firstTimestamp >= probeDuration) {
+                break;
+            }
         }
         started = true;
     }
@@ -124,22 +205,44 @@ public class StreamingChunker {
         hasVideo = false;
         fps = 20;
         begin = -1;
+        videoStreamIndex = -1;
+        packetClock = null;
+        if (packetReader != null) {
+            packetReader.stopAndWaitFor();
+            packetReader = null;
+        }
+        if (segmentWriter != null) {
+            /* The closed segment is left in the target dir for the owner to collect */
+            segmentWriter.close();
+            segmentWriter = null;
+        }
         if (grabber != null) {
             grabber.stop();
             grabber = null;
+            frameGrabber = null;
+        }
+        if (packetRing != null) {
+            packetRing.release();
+            packetRing = null;
+        }
+        if (writePacket != null) {
+            av_packet_free(writePacket);
+            writePacket = null;
         }
+        packetMode = false;
         if (recorder != null) {
             recorder.stop();
             recorder = null;
-            if (!probeFrames.isEmpty() || !probePackets.isEmpty()) {
-                if (!probeFrames.isEmpty()) {
-                    probeFrames.clear();
-                }
-                if (!probePackets.isEmpty()) {
-                    probePackets.clear();
-                }
-                System.gc();
-            }
+        }
+        /* Probes left unconsumed by an early stop go back to their pools */
+        Frame frame;
+        while ((frame = probeFrames.pollFirst()) != null) {
+            framePool.recycle(frame);
+        }
+        pendingFrame = null;
+        avcodec.AVPacket packet;
+        while ((packet = probePackets.pollFirst()) != null) {
+            av_packet_free(packet);
         }
     }
 
@@ -147,15 +250,22 @@ public class StreamingChunker {
         if (!started) {
             throw new IllegalStateException();
         }
-        Frame frame;
-        if (!probeFrames.isEmpty()) {
-            frame = probeFrames.remove(0);
-            if (probeFrames.isEmpty()) {
-                System.gc();
+        Frame frame = probeFrames.pollFirst();
+        if (frame != null) {
+            try {
+                record(frame);
+            } finally {
+                framePool.recycle(frame);
             }
-        } else {
-            frame = grab();
+            return true;
+        }
+        if (pendingFrame != null) {
+            frame = pendingFrame;
+            pendingFrame = null;
+            record(frame);
+            return true;
         }
+        frame = grab();
         if (frame == null) {
             return false;
         }
@@ -165,13 +275,14 @@ public class StreamingChunker {
 
     private Frame grab() throws Exception {
         if (grabber == null) {
-            grabber = grabberSupplier.get();
+            frameGrabber = frameGrabberSupplier.get();
+            grabber = frameGrabber;
             grabber.start();
 
             begin = System.currentTimeMillis() * 1000;
         }
 
-        Frame frame = grabber.grab();
+        Frame frame = frameGrabber.grab();
         if (frame != null) {
             if (frame.image != null) {
                 fpsCalculator.addTimestamp(frame.timestamp);
@@ -191,43 +302,57 @@ public class StreamingChunker {
      */
 
     public void startPacketRecord() throws Exception {
-        for (int pfn = 0, vfn = 0; pfn < 100 && vfn < 10; pfn++) {
+        packetMode = true;
+        PacketClock probeClock = new PacketClock(0);
+        for (int pfn = 1; ; pfn++) {
             avcodec.AVPacket packet = grabPacket();
-            if (packet != null && packet.size() > 0) {
+            if (packet == null) {
+                break;
+            }
+            if (packet.size() > 0) {
                 hasVideo = true;
-                vfn++;
             }
-            probePackets.add(packet);
+            /* The grabber reuses its packet, so keep our own reference */
+            avcodec.AVPacket probe = av_packet_alloc();
+            av_packet_ref(probe, packet);
+            probePackets.addLast(probe);
+            long elapsed = probeClock.timestamp(packet, grabber.getFormatContext());
+            /* Pre-event packets are always kept, the probe depth applies after them */
+            if (pfn >= grabber.getPrerollPackets() && (elapsed >= probeDuration || pfn >= MAX_PROBE_PACKETS)) {
+                break;
+            }
         }
+        videoStreamIndex = PacketClock.findVideoStreamIndex(grabber.getFormatContext());
+        packetRing = new PacketRing(packetRingCapacity);
+        packetRing.setVideoStreamIndex(videoStreamIndex);
+        writePacket = av_packet_alloc();
+        packetReader = new PacketReader();
+        packetReader.startPacket();
         started = true;
     }
 
+    /**
+     * Writes the next packet from the ring into the current chunk.
+     *
+     * @return false if the stream is lost.
+     */
     public boolean nextPacket() throws Exception {
         if (!started) {
             throw new IllegalStateException();
         }
-        avcodec.AVPacket packet;
-        if (!probePackets.isEmpty()) {
-            packet = probePackets.remove(0);
-            if (probePackets.isEmpty()) {
-                System.gc();
+        avcodec.AVPacket packet = probePackets.pollFirst();
+        if (packet != null) {
+            try {
+                recordPacket(packet);
+            } finally {
+                av_packet_free(packet);
             }
-        } else {
-            packet = grabPacket();
+            return true;
         }
-        /*  Retry connecting if packet returned null */
-        if (packet == null) {
-            for (int vfn = 0; vfn <15 && started; vfn++) {
-                LOG.log(Level.WARNING,"Connection Lost ! Trying to reconnect ...");
-                packet = grabPacket();
-                if (packet != null) {
-                    LOG.log(Level.FINER,"Connected.");
-                    break;
-                }
-            }
-            if (packet == null) return false;
+        if (!packetRing.poll(writePacket, PACKET_POLL_TIMEOUT)) {
+            return !packetRing.isClosed();
         }
-        recordPacket(packet);
+        recordPacket(writePacket);
         return true;
     }
 
@@ -235,7 +360,8 @@ public class StreamingChunker {
         if (grabber == null) {
             grabber = grabberSupplier.get();
             grabber.start();
-            begin = System.currentTimeMillis() * 1000;
+            /* Pre-event packets are older than the start */
+            begin = System.currentTimeMillis() * 1000 - grabber.getPrerollDuration();
         }
 
         avcodec.AVPacket packet = grabber.grabPacket();
@@ -243,8 +369,131 @@ public class StreamingChunker {
     }
 
     private void recordPacket(avcodec.AVPacket packet) throws Exception {
-        chunkDetector.nextPacket(System.currentTimeMillis()*1000);
-        recorder.recordPacket(packet);
+        boolean isKeyPacket = PacketClock.isKeyPacket(packet, videoStreamIndex);
+        if (chunkDetector.getChunksNum() == 0 && !isKeyPacket) {
+            /* Chunks start on a key packet, so they are decodable on their own */
+            av_packet_unref(packet);
+            return;
+        }
+        if (packetClock == null) {
+            packetClock = new PacketClock(begin);
+        }
+        chunkDetector.nextPacket(isKeyPacket, packetClock.timestamp(packet, grabber.getFormatContext()));
+        segmentWriter.write(packet);
+    }
+
+    /**
+     * Size of the packet ring between the network reader and the muxer, applied on the next start.
+     */
+    public void setPacketRingCapacity(int packetRingCapacity) {
+        if (packetRingCapacity < 1) {
+            throw new IllegalArgumentException("Packet ring capacity is less than one.");
+        }
+        this.packetRingCapacity = packetRingCapacity;
+    }
+
+    public int getPacketRingCapacity() {
+        return packetRingCapacity;
+    }
+
+    /**
+     * Span of stream buffered before the first chunk is opened, applied on the next start.
+     *
+     * @param probeDuration In microseconds.
+     */
+    public void setProbeDuration(long probeDuration) {
+        if (probeDuration < 0) {
+            throw new IllegalArgumentException("Probe duration is negative.");
+        }
+        this.probeDuration = probeDuration;
+    }
+
+    public long getProbeDuration() {
+        return probeDuration;
+    }
+
+    /**
+     * Pool of the probe frame copies, {@link FramePool#shared()} by default. Set it while stopped.
+     */
+    public void setFramePool(FramePool framePool) {
+        Objects.requireNonNull(framePool);
+        this.framePool = framePool;
+    }
+
+    public FramePool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * @return Ring of the running packet record for occupancy metrics, null if not started.
+     */
+    public PacketRing getPacketRing() {
+        return packetRing;
+    }
+
+    /**
+     * Reads packets from the network into the ring so disk stalls don't block av_read_frame.
+     */
+    private class PacketReader extends Executor {
+
+        @Override
+        public void run() throws Exception {
+            runPacket();
+        }
+
+        @Override
+        public void runPacket() throws Exception {
+            PacketRing ring = packetRing;
+            try {
+                while (!isStoping()) {
+                    avcodec.AVPacket packet = grabPacket();
+                    /*  Retry connecting if packet returned null */
+                    if (packet == null) {
+                        for (int vfn = 0; vfn < 15 && !isStoping(); vfn++) {
+                            LOG.log(Level.WARNING, "Connection Lost ! Trying to reconnect ...");
+                            packet = grabPacket();
+                            if (packet != null) {
+                                LOG.log(Level.FINER, "Connected.");
+                                break;
+                            }
+                        }
+                        if (packet == null) {
+                            break;
+                        }
+                    }
+                    if (!ring.offer(packet)) {
+                        LOG.log(Level.FINEST, "Packet ring is full, packet dropped.");
+                    }
+                }
+            } finally {
+                ring.close();
+                if (ring.getDroppedPackets() > 0) {
+                    LOG.log(Level.WARNING, String.format(
+                            "Packet ring dropped %d of %d packets, high water mark %d of %d.",
+                            ring.getDroppedPackets(),
+                            ring.getOfferedPackets(),
+                            ring.getHighWaterMark(),
+                            ring.getCapacity()));
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "packet-reader";
+        }
+    }
+
+    public SegmentFormat getSegmentFormat() {
+        return segmentFormat;
+    }
+
+    /**
+     * Container of packet-mode chunks, applied from the next chunk.
+     */
+    public void setSegmentFormat(SegmentFormat segmentFormat) {
+        Objects.requireNonNull(segmentFormat);
+        this.segmentFormat = segmentFormat;
     }
 
     public Consumer<File> getChunkHandler() {
@@ -0,0 +1,26 @@
+package recorder.engine.stream_chunker.segment_formats;
+
+import org.bytedeco.javacpp.avutil;
+import recorder.engine.stream_chunker.SegmentFormat;
+
+import static org.bytedeco.javacpp.avutil.av_dict_set;
+
+public class FragmentedMp4 implements SegmentFormat {
+
+    @Override
+    public String getFormatName() {
+        return "mp4";
+    }
+
+    @Override
+    public String getExtension() {
+        return "mp4";
+    }
+
+    @Override
+    public void configure(avutil.AVDictionary options) {
+        /* Fragments are flushed on every key packet, so a crash loses one GOP at most */
+        av_dict_set(options, "movflags", "frag_keyframe+empty_moov+default_base_moof", 0);
+    }
+
+}
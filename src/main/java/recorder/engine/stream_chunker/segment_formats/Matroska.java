@@ -0,0 +1,39 @@
+package recorder.engine.stream_chunker.segment_formats;
+
+import org.bytedeco.javacpp.avutil;
+import recorder.engine.stream_chunker.SegmentFormat;
+
+import static org.bytedeco.javacpp.avutil.av_dict_set;
+
+public class Matroska implements SegmentFormat {
+
+    /**
+     * In milliseconds.
+     */
+    private final static int CLUSTER_TIME_LIMIT = 1000;
+
+    @Override
+    public String getFormatName() {
+        return "matroska";
+    }
+
+    @Override
+    public String getExtension() {
+        return "mkv";
+    }
+
+    @Override
+    public void configure(avutil.AVDictionary options) {
+        /* Short clusters bound what is lost when the cues aren't written */
+        av_dict_set(options, "cluster_time_limit", String.valueOf(CLUSTER_TIME_LIMIT), 0);
+    }
+
+    /**
+     * Without the cues and the segment size written on close, players can't seek or tell the duration.
+     */
+    @Override
+    public boolean isCrashTolerant() {
+        return false;
+    }
+
+}
@@ -0,0 +1,26 @@
+package recorder.engine.stream_chunker.segment_formats;
+
+import org.bytedeco.javacpp.avutil;
+import recorder.engine.stream_chunker.SegmentFormat;
+
+import static org.bytedeco.javacpp.avutil.av_dict_set;
+
+public class MpegTs implements SegmentFormat {
+
+    @Override
+    public String getFormatName() {
+        return "mpegts";
+    }
+
+    @Override
+    public String getExtension() {
+        return "ts";
+    }
+
+    @Override
+    public void configure(avutil.AVDictionary options) {
+        /* Segments are played standalone, tables on every key packet let a reader join anywhere */
+        av_dict_set(options, "mpegts_flags", "resend_headers", 0);
+    }
+
+}
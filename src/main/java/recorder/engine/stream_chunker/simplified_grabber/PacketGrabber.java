@@ -0,0 +1,41 @@
+package recorder.engine.stream_chunker.simplified_grabber;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacv.FrameGrabber;
+
+/**
+ * Grabber of copied packets only, e.g. a view of a shared connection, see {@link SimplifiedGrabber} for frames too.
+ */
+public interface PacketGrabber {
+
+    public avcodec.AVPacket grabPacket() throws FrameGrabber.Exception;
+
+    public avformat.AVFormatContext getFormatContext();
+
+    public int getAudioChannels();
+
+    public int getImageWidth();
+
+    public int getImageHeight();
+
+    public int getFps();
+
+    /**
+     * @return Number of packets that were already buffered when the grabber was started.
+     */
+    public default int getPrerollPackets() {
+        return 0;
+    }
+
+    /**
+     * @return Span of the packets that were already buffered when the grabber was started, in microseconds.
+     */
+    public default long getPrerollDuration() {
+        return 0;
+    }
+
+    public void start() throws FrameGrabber.Exception;
+
+    public void stop() throws FrameGrabber.Exception;
+}
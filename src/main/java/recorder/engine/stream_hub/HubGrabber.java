@@ -0,0 +1,217 @@
+package recorder.engine.stream_hub;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacv.FrameGrabber;
+import recorder.engine.stream_chunker.PacketClock;
+import recorder.engine.stream_chunker.simplified_grabber.PacketGrabber;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.avcodec.*;
+
+/**
+ * {@link PacketGrabber} reading packets from a {@link StreamHub} instead of its own connection.
+ * A packet returned by {@link #grabPacket()} is valid until the next call.
+ * The view is bound to the connection it was started on and ends with it, see {@link StreamHub}.
+ *
+ * The hub reader never blocks on a view, so a full queue drops the rest of the GOP up to the next video key packet,
+ * and a key packet that doesn't fit evicts the oldest GOP, the same way {@link recorder.engine.stream_chunker.PacketRing} does.
+ */
+public class HubGrabber implements PacketGrabber, PacketSink {
+
+    private static final Logger LOG = Logger.getLogger(HubGrabber.class.getName());
+
+    private final static int QUEUE_CAPACITY = 512;
+    /**
+     * In milliseconds.
+     */
+    private final static int TIMEOUT = 3000;
+
+    private final StreamHub hub;
+    private final PreEventBuffer preEventBuffer;
+    private int queueCapacity = QUEUE_CAPACITY;
+    private int prerollPackets = 0;
+    private long prerollDuration = 0;
+    private final ArrayDeque<avcodec.AVPacket> queue = new ArrayDeque<>();
+    private avcodec.AVPacket lastPacket = null;
+    private volatile StreamHub.Connection connection = null;
+    private int videoStreamIndex = -2;
+    private boolean dropUntilKey = false;
+    private boolean ended = false;
+    private long droppedPackets = 0;
+
+    /**
+     * @param preEventBuffer Replayed on start, may be null.
+     */
+    HubGrabber(StreamHub hub, PreEventBuffer preEventBuffer) {
+        Objects.requireNonNull(hub);
+        this.hub = hub;
+        this.preEventBuffer = preEventBuffer;
+    }
+
+    @Override
+    public void onPacket(avcodec.AVPacket packet) {
+        synchronized (queue) {
+            if (videoStreamIndex == -2) {
+                // Called by the hub for its current connection, which this view is being bound to.
+                videoStreamIndex = PacketClock.findVideoStreamIndex(hub.getFormatContext());
+            }
+            boolean video = videoStreamIndex < 0 || packet.stream_index() == videoStreamIndex;
+            boolean key = PacketClock.isKeyPacket(packet, videoStreamIndex);
+            if (video) {
+                if (key) {
+                    dropUntilKey = false;
+                } else if (dropUntilKey) {
+                    droppedPackets++;
+                    return;
+                }
+            }
+            if (queue.size() >= queueCapacity) {
+                if (!key) {
+                    // Rest of the GOP can't be decoded without this packet.
+                    dropUntilKey = video;
+                    droppedPackets++;
+                    LOG.log(Level.FINER, "Hub grabber queue is full, packet dropped.");
+                    return;
+                }
+                dropOldestGop();
+            }
+            avcodec.AVPacket copy = av_packet_alloc();
+            av_packet_ref(copy, packet);
+            queue.addLast(copy);
+            queue.notify();
+        }
+    }
+
+    private void dropOldestGop() {
+        do {
+            av_packet_free(queue.pollFirst());
+            droppedPackets++;
+        } while (!queue.isEmpty() && !PacketClock.isKeyPacket(queue.peekFirst(), videoStreamIndex));
+    }
+
+    @Override
+    public void onStreamEnd() {
+        synchronized (queue) {
+            ended = true;
+            queue.notify();
+        }
+    }
+
+    @Override
+    public avcodec.AVPacket grabPacket() throws FrameGrabber.Exception {
+        if (connection == null) {
+            throw new IllegalStateException();
+        }
+        if (lastPacket != null) {
+            av_packet_free(lastPacket);
+            lastPacket = null;
+        }
+        synchronized (queue) {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (queue.isEmpty() && !ended) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return null;
+                }
+                try {
+                    queue.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            lastPacket = queue.pollFirst();
+        }
+        return lastPacket;
+    }
+
+    @Override
+    public avformat.AVFormatContext getFormatContext() {
+        return getGrabber().getFormatContext();
+    }
+
+    @Override
+    public int getAudioChannels() {
+        return getGrabber().getAudioChannels();
+    }
+
+    @Override
+    public int getImageWidth() {
+        return getGrabber().getImageWidth();
+    }
+
+    @Override
+    public int getImageHeight() {
+        return getGrabber().getImageHeight();
+    }
+
+    @Override
+    public int getFps() {
+        return getGrabber().getFps();
+    }
+
+    @Override
+    public int getPrerollPackets() {
+        return prerollPackets;
+    }
+
+    @Override
+    public long getPrerollDuration() {
+        return prerollDuration;
+    }
+
+    /**
+     * @return Grabber of the connection the view is bound to, open until {@link #stop()}.
+     */
+    private PacketGrabber getGrabber() {
+        StreamHub.Connection bound = connection;
+        if (bound == null) {
+            throw new IllegalStateException("Hub grabber isn't started.");
+        }
+        return bound.getGrabber();
+    }
+
+    @Override
+    public void start() throws FrameGrabber.Exception {
+        if (connection != null) {
+            throw new IllegalStateException();
+        }
+        if (preEventBuffer != null) {
+            prerollPackets = preEventBuffer.getBufferedPackets();
+            prerollDuration = preEventBuffer.getBufferedDuration();
+            queueCapacity = QUEUE_CAPACITY + prerollPackets;
+        }
+        try {
+            connection = hub.attach(this, preEventBuffer);
+        } catch (Exception e) {
+            throw new FrameGrabber.Exception("Can't subscribe to stream hub.", e);
+        }
+    }
+
+    @Override
+    public void stop() throws FrameGrabber.Exception {
+        StreamHub.Connection bound = connection;
+        if (bound == null) {
+            throw new IllegalStateException();
+        }
+        connection = null;
+        hub.detach(this, bound);
+        synchronized (queue) {
+            queue.forEach(packet -> av_packet_free(packet));
+            queue.clear();
+        }
+        if (lastPacket != null) {
+            av_packet_free(lastPacket);
+            lastPacket = null;
+        }
+        if (droppedPackets > 0) {
+            LOG.log(Level.WARNING, "Hub grabber dropped {0} packets.", droppedPackets);
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package recorder.engine.stream_hub;
+
+import org.bytedeco.javacpp.avcodec;
+import recorder.engine.stream_chunker.PacketClock;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Estimates scene activity of a {@link StreamHub} from encoded packet sizes, without decoding.
+ * P-frames of a static scene are small and steady, motion makes them grow.
+ * The bytes of non-key video packets of every second are compared with a rolling baseline of the per-GOP P-frame byte rate,
+ * the ratio is the activity score of that second: about 1 for a static scene, higher with activity.
+ *
+ * Thread safe.
+ */
+public class PacketActivityEstimator implements PacketSink {
+
+    private static final Logger LOG = Logger.getLogger(PacketActivityEstimator.class.getName());
+
+    public static interface Listener {
+
+        /**
+         * @param second Epoch seconds.
+         */
+        public void onScore(long second, float score);
+    }
+
+    /**
+     * In seconds.
+     */
+    public final static int DEFAULT_HISTORY = 3600;
+    /**
+     * Baseline follows quieter GOPs quickly and louder ones slowly, so long activity doesn't become the norm.
+     */
+    private final static double BASELINE_ALPHA_DOWN = 0.1;
+    private final static double BASELINE_ALPHA_UP = 0.01;
+
+    private final StreamHub hub;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int videoStreamIndex = -2;
+
+    /**
+     * Bytes per second, 0 until the first complete GOP.
+     */
+    private double baseline = 0;
+    private long gopBegin = -1;
+    private long gopBytes = 0;
+
+    /**
+     * Epoch seconds of the open bucket, -1 if none.
+     */
+    private long second = -1;
+    private long secondBytes = 0;
+
+    private final long[] historySeconds;
+    private final float[] historyScores;
+    private int historyHead = 0;
+    private int historySize = 0;
+
+    public PacketActivityEstimator(StreamHub hub) {
+        this(hub, DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history In seconds, how long scores are kept for queries.
+     */
+    public PacketActivityEstimator(StreamHub hub, int history) {
+        Objects.requireNonNull(hub);
+        if (history < 1) {
+            throw new IllegalArgumentException("History is less than one second.");
+        }
+        this.hub = hub;
+        this.historySeconds = new long[history];
+        this.historyScores = new float[history];
+    }
+
+    public List<Listener> getListeners() {
+        return listeners;
+    }
+
+    @Override
+    public void onPacket(avcodec.AVPacket packet) {
+        long now = System.currentTimeMillis();
+        long scoredSecond = -1;
+        float score = 0;
+        synchronized (this) {
+            if (videoStreamIndex == -2) {
+                videoStreamIndex = PacketClock.findVideoStreamIndex(hub.getFormatContext());
+            }
+            if (videoStreamIndex < 0 || packet.stream_index() != videoStreamIndex) {
+                return;
+            }
+            long packetSecond = now / 1000;
+            if (second != packetSecond) {
+                if (second != -1 && baseline > 0) {
+                    scoredSecond = second;
+                    score = (float) (secondBytes / baseline);
+                    addScore(scoredSecond, score);
+                }
+                second = packetSecond;
+                secondBytes = 0;
+            }
+            if (PacketClock.isKeyPacket(packet, videoStreamIndex)) {
+                closeGop(now);
+            } else {
+                secondBytes += packet.size();
+                gopBytes += packet.size();
+            }
+        }
+        if (scoredSecond != -1) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.onScore(scoredSecond, score);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Error in activity listener.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps scoring the reconnected stream.
+     */
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public synchronized void onStreamEnd() {
+        // Times of a new connection don't continue this GOP nor this second.
+        gopBegin = -1;
+        gopBytes = 0;
+        second = -1;
+        secondBytes = 0;
+        videoStreamIndex = -2;
+    }
+
+    private void closeGop(long now) {
+        if (gopBegin != -1 && now > gopBegin) {
+            double rate = gopBytes * 1000.0 / (now - gopBegin);
+            if (baseline == 0) {
+                baseline = rate;
+            } else {
+                baseline += (rate < baseline ? BASELINE_ALPHA_DOWN : BASELINE_ALPHA_UP) * (rate - baseline);
+            }
+        }
+        gopBegin = now;
+        gopBytes = 0;
+    }
+
+    private void addScore(long second, float score) {
+        int index = (historyHead + historySize) % historySeconds.length;
+        historySeconds[index] = second;
+        historyScores[index] = score;
+        if (historySize < historySeconds.length) {
+            historySize++;
+        } else {
+            historyHead = (historyHead + 1) % historySeconds.length;
+        }
+    }
+
+    /**
+     * @return Bytes per second of P-frames in a static scene, 0 while unknown.
+     */
+    public synchronized double getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * @param begin Epoch milliseconds.
+     * @param end   Epoch milliseconds.
+     * @return Max score of the seconds in the range, NaN if the history doesn't cover the range,
+     * so the caller can't tell whether there was activity.
+     */
+    public synchronized float getMaxScore(long begin, long end) {
+        if (historySize == 0) {
+            return Float.NaN;
+        }
+        long beginSecond = begin / 1000;
+        long endSecond = end / 1000;
+        long oldest = historySeconds[historyHead];
+        long newest = historySeconds[(historyHead + historySize - 1) % historySeconds.length];
+        // The second of the end may be still open.
+        if (beginSecond < oldest || endSecond > newest + 1) {
+            return Float.NaN;
+        }
+        float max = Float.NaN;
+        for (int i = 0; i < historySize; i++) {
+            int index = (historyHead + i) % historySeconds.length;
+            long s = historySeconds[index];
+            if (s >= beginSecond && s <= endSecond && (Float.isNaN(max) || historyScores[index] > max)) {
+                max = historyScores[index];
+            }
+        }
+        if (second != -1 && second <= endSecond && baseline > 0) {
+            float open = (float) (secondBytes / baseline);
+            if (Float.isNaN(max) || open > max) {
+                max = open;
+            }
+        }
+        return max;
+    }
+}
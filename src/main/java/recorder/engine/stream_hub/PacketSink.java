@@ -0,0 +1,28 @@
+package recorder.engine.stream_hub;
+
+import org.bytedeco.javacpp.avcodec;
+
+/**
+ * Consumer of the packets demuxed by a {@link StreamHub}.
+ * Invoked on the hub reader thread, so implementations should only copy or inspect the packet.
+ */
+public interface PacketSink {
+
+    /**
+     * @param packet Owned by the hub and valid only for the duration of the call.
+     */
+    public void onPacket(avcodec.AVPacket packet) throws Exception;
+
+    /**
+     * The stream is lost, the next packet if any belongs to a new connection.
+     */
+    public default void onStreamEnd() {
+    }
+
+    /**
+     * @return true if the sink stays subscribed across reconnects, false if it's detached when the stream ends.
+     */
+    public default boolean isPersistent() {
+        return false;
+    }
+}
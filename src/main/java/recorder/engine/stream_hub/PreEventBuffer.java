@@ -0,0 +1,149 @@
+package recorder.engine.stream_hub;
+
+import org.bytedeco.javacpp.avcodec;
+import recorder.engine.stream_chunker.PacketClock;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.avcodec.*;
+
+/**
+ * Keeps the last seconds of a {@link StreamHub} in memory as referenced native packets.
+ * The buffer always starts on a key packet, so a triggered recording can be primed with it
+ * instead of writing footage to disk that is mostly thrown away.
+ *
+ * Thread safe.
+ */
+public class PreEventBuffer implements PacketSink {
+
+    private static final Logger LOG = Logger.getLogger(PreEventBuffer.class.getName());
+
+    /**
+     * Hard limit in case the stream has no key packets for a long time.
+     */
+    private final static int MAX_PACKETS = 8192;
+
+    private final StreamHub hub;
+    private final long duration;
+    private final ArrayDeque<avcodec.AVPacket> packets = new ArrayDeque<>();
+    private final ArrayDeque<Gop> gops = new ArrayDeque<>();
+    private int videoStreamIndex = -2;
+
+    /**
+     * @param duration In microseconds.
+     */
+    public PreEventBuffer(StreamHub hub, long duration) {
+        Objects.requireNonNull(hub);
+        if (duration < 0) {
+            throw new IllegalArgumentException("Duration is less than zero.");
+        }
+        this.hub = hub;
+        this.duration = duration;
+    }
+
+    @Override
+    public synchronized void onPacket(avcodec.AVPacket packet) {
+        if (videoStreamIndex == -2) {
+            videoStreamIndex = PacketClock.findVideoStreamIndex(hub.getFormatContext());
+        }
+        long now = System.nanoTime() / 1000;
+        if (PacketClock.isKeyPacket(packet, videoStreamIndex)) {
+            if (!gops.isEmpty()) {
+                gops.peekLast().nextBegin = now;
+            }
+            gops.addLast(new Gop(now));
+        } else if (gops.isEmpty()) {
+            // Can't be decoded without its key packet.
+            return;
+        }
+        avcodec.AVPacket copy = av_packet_alloc();
+        av_packet_ref(copy, packet);
+        packets.addLast(copy);
+        gops.peekLast().packets++;
+
+        // Drop the oldest GOP while the following ones still cover the duration.
+        while (gops.size() > 1
+                && (now - gops.peekFirst().nextBegin >= duration || packets.size() > MAX_PACKETS)) {
+            dropOldestGop();
+        }
+        if (packets.size() > MAX_PACKETS) {
+            LOG.log(Level.FINER, "Pre-event buffer is over its packet limit, cleared.");
+            clear();
+        }
+    }
+
+    /**
+     * Keeps buffering the reconnected stream.
+     */
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public synchronized void onStreamEnd() {
+        clear();
+        videoStreamIndex = -2;
+    }
+
+    /**
+     * Passes copies of the buffered packets to the sink, oldest first. The buffer is left intact.
+     */
+    public synchronized void replayTo(PacketSink sink) throws Exception {
+        for (avcodec.AVPacket packet : packets) {
+            sink.onPacket(packet);
+        }
+    }
+
+    /**
+     * @return Span of the buffered packets in microseconds.
+     */
+    public synchronized long getBufferedDuration() {
+        if (gops.isEmpty()) {
+            return 0;
+        }
+        return System.nanoTime() / 1000 - gops.peekFirst().begin;
+    }
+
+    public synchronized int getBufferedPackets() {
+        return packets.size();
+    }
+
+    /**
+     * @return In microseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public synchronized void clear() {
+        packets.forEach(packet -> av_packet_free(packet));
+        packets.clear();
+        gops.clear();
+    }
+
+    private void dropOldestGop() {
+        Gop gop = gops.removeFirst();
+        for (int i = 0; i < gop.packets; i++) {
+            av_packet_free(packets.removeFirst());
+        }
+    }
+
+    private static class Gop {
+
+        /**
+         * Arrival time in microseconds.
+         */
+        private final long begin;
+        private long nextBegin = Long.MAX_VALUE;
+        private int packets = 0;
+
+        Gop(long begin) {
+            this.begin = begin;
+        }
+    }
+
+}
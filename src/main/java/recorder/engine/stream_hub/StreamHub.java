@@ -0,0 +1,399 @@
+package recorder.engine.stream_hub;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import recorder.common.Executor;
+import recorder.engine.stream_chunker.simplified_grabber.PacketGrabber;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns a single connection to a camera and fans its packets out to any number of {@link PacketSink}s.
+ * The connection is opened by the first {@link #acquire()} and closed by the last {@link #release()}.
+ *
+ * When the stream is lost every sink gets {@link PacketSink#onStreamEnd()}. Sinks that aren't
+ * {@link PacketSink#isPersistent() persistent} are detached, so they never see packets of another connection,
+ * and the hub reconnects with backoff as long as persistent sinks are subscribed.
+ * The lost connection is closed once nothing reads its format context anymore.
+ *
+ * Thread safe.
+ */
+public class StreamHub {
+
+    private static final Logger LOG = Logger.getLogger(StreamHub.class.getName());
+
+    private final static int RECONNECT_ATTEMPTS = 15;
+    /**
+     * In milliseconds.
+     */
+    private final static long RECONNECT_DELAY = 1000;
+    private final static long MAX_RECONNECT_DELAY = 60000;
+
+    private final Supplier<? extends PacketGrabber> grabberSupplier;
+    private final List<PacketSink> sinks = new ArrayList<>();
+    private volatile Connection connection = null;
+    private int references = 0;
+    private final Object reconnectorSync = new Object();
+    private Reconnector reconnector = null;
+
+    public StreamHub(Supplier<? extends PacketGrabber> grabberSupplier) {
+        Objects.requireNonNull(grabberSupplier);
+        this.grabberSupplier = grabberSupplier;
+    }
+
+    /**
+     * Opens the connection if this is the first consumer or the previous connection is lost.
+     */
+    public synchronized void acquire() throws Exception {
+        if (connection == null || connection.isLost()) {
+            open();
+        }
+        references++;
+    }
+
+    /**
+     * Closes the connection if this was the last consumer.
+     */
+    public synchronized void release() {
+        if (references == 0) {
+            throw new IllegalStateException("Stream hub isn't acquired.");
+        }
+        references--;
+        if (references == 0) {
+            synchronized (reconnectorSync) {
+                if (reconnector != null) {
+                    reconnector.stop();
+                    reconnector = null;
+                }
+            }
+            close();
+        }
+    }
+
+    public void subscribe(PacketSink sink) throws Exception {
+        Objects.requireNonNull(sink);
+        acquire();
+        addSink(sink);
+    }
+
+    public void unsubscribe(PacketSink sink) {
+        removeSink(sink);
+        release();
+    }
+
+    public void addSink(PacketSink sink) {
+        synchronized (sinks) {
+            sinks.add(sink);
+        }
+    }
+
+    /**
+     * Replays the pre-event buffer into the sink and adds it without losing or repeating a packet in between.
+     */
+    public void addSink(PacketSink sink, PreEventBuffer preEventBuffer) throws Exception {
+        synchronized (sinks) {
+            preEventBuffer.replayTo(sink);
+            sinks.add(sink);
+        }
+    }
+
+    public void removeSink(PacketSink sink) {
+        synchronized (sinks) {
+            sinks.remove(sink);
+        }
+    }
+
+    /**
+     * @return Pull-style view of the hub for code written against {@link PacketGrabber}.
+     */
+    public PacketGrabber newGrabber() {
+        return new HubGrabber(this, null);
+    }
+
+    /**
+     * @return View that starts with the packets held by the pre-event buffer, followed by the live stream.
+     */
+    public PacketGrabber newGrabber(PreEventBuffer preEventBuffer) {
+        Objects.requireNonNull(preEventBuffer);
+        return new HubGrabber(this, preEventBuffer);
+    }
+
+    public synchronized int getReferences() {
+        return references;
+    }
+
+    /**
+     * @return Format context of the current connection. Sinks get the one of the packets they are passed.
+     */
+    public avformat.AVFormatContext getFormatContext() {
+        Connection current = connection;
+        if (current == null) {
+            throw new IllegalStateException("Stream hub isn't started.");
+        }
+        return current.grabber.getFormatContext();
+    }
+
+    /**
+     * Acquires the hub and adds a sink bound to the current connection, whose grabber stays open until
+     * {@link #detach(PacketSink, Connection)} even if the stream is lost meanwhile.
+     *
+     * @param preEventBuffer Replayed into the sink first, may be null.
+     */
+    synchronized Connection attach(PacketSink sink, PreEventBuffer preEventBuffer) throws Exception {
+        acquire();
+        Connection current = connection;
+        current.retain();
+        try {
+            synchronized (sinks) {
+                if (current.isLost()) {
+                    sink.onStreamEnd();
+                } else {
+                    if (preEventBuffer != null) {
+                        preEventBuffer.replayTo(sink);
+                    }
+                    sinks.add(sink);
+                }
+            }
+        } catch (Exception e) {
+            current.dispose();
+            release();
+            throw e;
+        }
+        return current;
+    }
+
+    void detach(PacketSink sink, Connection bound) {
+        removeSink(sink);
+        bound.dispose();
+        release();
+    }
+
+    /**
+     * Replaces the current connection, the hub lock is held.
+     */
+    private void open() throws Exception {
+        PacketGrabber newGrabber = grabberSupplier.get();
+        newGrabber.start();
+        Connection previous = connection;
+        Connection next = new Connection(newGrabber);
+        connection = next;
+        if (previous != null) {
+            previous.reader.stop();
+            previous.dispose();
+        }
+        next.reader.startPacket();
+    }
+
+    /**
+     * Drops the current connection, the hub lock is held.
+     */
+    private void close() {
+        Connection current = connection;
+        if (current != null) {
+            connection = null;
+            try {
+                current.reader.stopAndWaitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            current.dispose();
+        }
+    }
+
+    private void dispatch(avcodec.AVPacket packet) {
+        synchronized (sinks) {
+            for (PacketSink sink : sinks) {
+                try {
+                    sink.onPacket(packet);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Error in packet sink.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if persistent sinks are waiting for the next connection.
+     */
+    private boolean endStream() {
+        boolean persistent = false;
+        synchronized (sinks) {
+            Iterator<PacketSink> iterator = sinks.iterator();
+            while (iterator.hasNext()) {
+                PacketSink sink = iterator.next();
+                try {
+                    sink.onStreamEnd();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Error in packet sink.", e);
+                }
+                if (sink.isPersistent()) {
+                    persistent = true;
+                } else {
+                    iterator.remove();
+                }
+            }
+        }
+        return persistent;
+    }
+
+    private boolean hasPersistentSinks() {
+        synchronized (sinks) {
+            return sinks.stream().anyMatch(PacketSink::isPersistent);
+        }
+    }
+
+    private void scheduleReconnect() {
+        synchronized (reconnectorSync) {
+            if (reconnector == null || !reconnector.isExecuting()) {
+                reconnector = new Reconnector();
+                reconnector.start();
+            }
+        }
+    }
+
+    /**
+     * Grabber of one connection, closed when its reader, the hub and every attached view are done with it.
+     */
+    final class Connection {
+
+        private final PacketGrabber grabber;
+        private final Reader reader;
+        /**
+         * The reader and the hub hold one each.
+         */
+        private int holders = 2;
+        private boolean lost = false;
+
+        private Connection(PacketGrabber grabber) {
+            this.grabber = grabber;
+            this.reader = new Reader(this);
+        }
+
+        PacketGrabber getGrabber() {
+            return grabber;
+        }
+
+        synchronized boolean isLost() {
+            return lost;
+        }
+
+        private synchronized void retain() {
+            holders++;
+        }
+
+        private void dispose() {
+            synchronized (this) {
+                if (--holders > 0) {
+                    return;
+                }
+            }
+            try {
+                grabber.stop();
+            } catch (Exception exception) {
+                LOG.log(Level.WARNING, "Can't stop grabber.", exception);
+            }
+            LOG.log(Level.FINER, "Stream hub connection is closed.");
+        }
+
+        private synchronized void lose() {
+            lost = true;
+        }
+    }
+
+    private class Reader extends Executor {
+
+        private final Connection readerConnection;
+
+        Reader(Connection readerConnection) {
+            this.readerConnection = readerConnection;
+        }
+
+        @Override
+        public void run() throws Exception {
+            runPacket();
+        }
+
+        @Override
+        public void runPacket() throws Exception {
+            PacketGrabber readerGrabber = readerConnection.grabber;
+            try {
+                while (!isStoping()) {
+                    avcodec.AVPacket packet = readerGrabber.grabPacket();
+                    /*  Retry reading if packet returned null */
+                    for (int attempt = 0; packet == null && attempt < RECONNECT_ATTEMPTS && !isStoping(); attempt++) {
+                        LOG.log(Level.WARNING, "Connection Lost ! Trying to reconnect ...");
+                        packet = readerGrabber.grabPacket();
+                    }
+                    if (packet == null) {
+                        break;
+                    }
+                    dispatch(packet);
+                }
+            } finally {
+                boolean persistent;
+                // Atomic with attach(), so no view is added to a lost connection without being ended.
+                synchronized (sinks) {
+                    readerConnection.lose();
+                    persistent = endStream();
+                }
+                if (persistent && !isStoping()) {
+                    LOG.log(Level.WARNING, "Stream is lost, reconnecting for persistent sinks.");
+                    scheduleReconnect();
+                }
+                readerConnection.dispose();
+                LOG.log(Level.FINER, "Stream hub reader is stopped.");
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "stream-hub";
+        }
+    }
+
+    /**
+     * Opens a new connection with growing delays while persistent sinks are subscribed.
+     */
+    private class Reconnector extends Executor {
+
+        @Override
+        public void run() throws Exception {
+            long delay = RECONNECT_DELAY;
+            while (!isStoping()) {
+                sleep(delay);
+                if (isStoping()) {
+                    break;
+                }
+                synchronized (StreamHub.this) {
+                    if (references == 0 || connection == null || !connection.isLost() || !hasPersistentSinks()) {
+                        return;
+                    }
+                    try {
+                        open();
+                        LOG.log(Level.INFO, "Stream hub is reconnected.");
+                        return;
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, String.format("Can't reconnect, next attempt in %d ms.", delay), e);
+                    }
+                }
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+        }
+
+        @Override
+        public void runPacket() throws Exception {
+            run();
+        }
+
+        @Override
+        public String getName() {
+            return "stream-hub-reconnector";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package recorder.record;
+
+import org.bytedeco.javacv.Frame;
+import recorder.common.HasMediaType;
+
+/**
+ * Receives the decoded frames of a sample from a shared decode pass, see {@link SampleDecoder}.
+ * Only frames of its media type are passed, the frame is valid during the call only.
+ */
+public interface FrameVisitor extends HasMediaType {
+
+    /**
+     * Video frames a visitor can do without, the decoder skips them if all visitors agree.
+     */
+    public static enum FrameSkip {
+        NONE, NON_REFERENCE, NON_KEY;
+    }
+
+    public default FrameSkip getFrameSkip() {
+        return FrameSkip.NONE;
+    }
+
+    /**
+     * @return Width of video frames enough for the visitor, the height keeps the aspect ratio. 0 for full resolution.
+     */
+    public default int getImageWidth() {
+        return 0;
+    }
+
+    /**
+     * @return true if the visitor handles single channel gray video frames.
+     */
+    public default boolean isGrayAccepted() {
+        return false;
+    }
+
+    /**
+     * @return false once the visitor has its answer and needs no more frames.
+     */
+    public boolean visit(Frame frame);
+
+    /**
+     * Called once after the last visited frame, also on early termination.
+     *
+     * @return Result of the trigger for the sample.
+     */
+    public boolean finish();
+
+    /**
+     * Frees resources if the decode pass failed before {@link #finish()}.
+     */
+    public default void abort() {
+    }
+
+}
@@ -0,0 +1,155 @@
+package recorder.record;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * RMS level of a segment's audio per fixed interval, in whole dBFS, so levels can be searched and re-thresholded
+ * without decoding the audio again. Kept in a sidecar file next to the segment, see {@link #sidecarOf(File)}.
+ */
+public class LoudnessEnvelope {
+
+    /**
+     * Level of an interval without any signal.
+     */
+    public final static byte SILENCE = Byte.MIN_VALUE;
+    /**
+     * In milliseconds.
+     */
+    public final static int DEFAULT_INTERVAL = 100;
+    public final static String SIDECAR_EXTENSION = ".loudness";
+
+    private final static int MAGIC = 0x4C454E56;
+    private final static int VERSION = 1;
+
+    private final long beginTime;
+    private final int interval;
+    private final byte[] levels;
+
+    /**
+     * @param beginTime Epoch milliseconds of the first interval.
+     * @param interval  In milliseconds.
+     * @param levels    dBFS [-127, 0] or {@link #SILENCE} per interval, not copied.
+     */
+    public LoudnessEnvelope(long beginTime, int interval, byte[] levels) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval is less than 1 ms.");
+        }
+        if (levels == null) {
+            throw new IllegalArgumentException("Levels are null.");
+        }
+        this.beginTime = beginTime;
+        this.interval = interval;
+        this.levels = levels;
+    }
+
+    /**
+     * @param meanSquare Mean square of 16 bit samples.
+     * @return Level in whole dBFS, {@link #SILENCE} for no signal.
+     */
+    public static byte level(double meanSquare) {
+        if (meanSquare <= 0) {
+            return SILENCE;
+        }
+        long decibels = Math.round(10 * Math.log10(meanSquare / (32768.0 * 32768.0)));
+        return (byte) Math.max(-127, Math.min(0, decibels));
+    }
+
+    /**
+     * @return In epoch milliseconds.
+     */
+    public long getBeginTime() {
+        return beginTime;
+    }
+
+    /**
+     * @return In milliseconds.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return levels.length;
+    }
+
+    public byte getLevel(int index) {
+        return levels[index];
+    }
+
+    /**
+     * @param from Epoch milliseconds.
+     * @param to   Epoch milliseconds.
+     * @return Max level of the intervals overlapping the range, {@link #SILENCE} if none.
+     */
+    public byte getMaxLevel(long from, long to) {
+        int first = (int) Math.max(0, Math.floorDiv(from - beginTime, (long) interval));
+        int last = (int) Math.min(levels.length - 1, Math.floorDiv(to - beginTime, (long) interval));
+        byte max = SILENCE;
+        for (int i = first; i <= last; i++) {
+            if (levels[i] > max) {
+                max = levels[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param threshold dBFS.
+     * @return Epoch milliseconds of the intervals louder than the threshold.
+     */
+    public long[] findLouderThan(int threshold) {
+        int count = 0;
+        for (byte level : levels) {
+            if (level > threshold) {
+                count++;
+            }
+        }
+        long[] times = new long[count];
+        int j = 0;
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] > threshold) {
+                times[j++] = beginTime + (long) i * interval;
+            }
+        }
+        return times;
+    }
+
+    public static File sidecarOf(File segment) {
+        return Sidecars.of(segment, SIDECAR_EXTENSION);
+    }
+
+    public void write(File file) {
+        Sidecars.write(file, MAGIC, VERSION, "loudness envelope", output -> {
+            output.writeLong(beginTime);
+            output.writeInt(interval);
+            output.writeInt(levels.length);
+            output.write(levels);
+        });
+    }
+
+    public static LoudnessEnvelope read(File file) {
+        return Sidecars.read(file, MAGIC, VERSION, "loudness envelope", input -> {
+            long beginTime = input.readLong();
+            int interval = input.readInt();
+            byte[] levels = new byte[input.readInt()];
+            input.readFully(levels);
+            return new LoudnessEnvelope(beginTime, interval, levels);
+        });
+    }
+
+    /**
+     * Scans the sidecars under the directory, no audio is decoded. Unreadable sidecars are skipped.
+     *
+     * @param from      Epoch milliseconds.
+     * @param to        Epoch milliseconds.
+     * @param threshold dBFS.
+     * @return Segments louder than the threshold somewhere in the range, in no particular order.
+     */
+    public static List<File> findLoudSegments(File dir, long from, long to, int threshold) {
+        return Sidecars.find(dir, SIDECAR_EXTENSION, LoudnessEnvelope::read, (segment, envelope) -> {
+            long end = envelope.beginTime + (long) envelope.levels.length * envelope.interval;
+            return end >= from && envelope.beginTime <= to && envelope.getMaxLevel(from, to) > threshold;
+        });
+    }
+}
@@ -0,0 +1,183 @@
+package recorder.record;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Share of changed pixels of a segment per second, max and mean over the frames compared in the second,
+ * optionally per cell of a coarse zone grid, so footage can be searched for motion without decoding it again.
+ * Kept in a sidecar file next to the segment, see {@link #sidecarOf(File)}.
+ * Percents are stored as unsigned bytes of 1/255 steps, rounded up.
+ */
+public class MotionActivity {
+
+    public final static String SIDECAR_EXTENSION = ".motion";
+    public final static int MAX_GRID = 16;
+
+    private final static int MAGIC = 0x4D414354;
+    private final static int VERSION = 1;
+
+    private final long beginTime;
+    private final int grid;
+    private final byte[] max;
+    private final byte[] mean;
+    /**
+     * Max per cell, row by row, for every second.
+     */
+    private final byte[] zones;
+
+    /**
+     * @param beginTime Epoch milliseconds of the first second.
+     * @param grid      Cells per side of the zone grid, 0 without zones.
+     * @param max       Quantized percent per second, see {@link #quantize(double)}, not copied.
+     * @param mean      Same size as max.
+     * @param zones     grid * grid values per second, null without zones.
+     */
+    public MotionActivity(long beginTime, int grid, byte[] max, byte[] mean, byte[] zones) {
+        if (grid < 0 || grid > MAX_GRID) {
+            throw new IllegalArgumentException("Grid is out of [0, " + MAX_GRID + "].");
+        }
+        if (max == null || mean == null || mean.length != max.length) {
+            throw new IllegalArgumentException("Max and mean don't match.");
+        }
+        if (grid == 0 ? zones != null : zones == null || zones.length != max.length * grid * grid) {
+            throw new IllegalArgumentException("Zones don't match the grid.");
+        }
+        this.beginTime = beginTime;
+        this.grid = grid;
+        this.max = max;
+        this.mean = mean;
+        this.zones = zones;
+    }
+
+    /**
+     * @param percent [0, 100]
+     */
+    public static byte quantize(double percent) {
+        return (byte) Math.min(255, Math.max(0, (int) Math.ceil(percent * 2.55)));
+    }
+
+    private static double percent(byte value) {
+        return (value & 0xFF) / 2.55;
+    }
+
+    /**
+     * @return In epoch milliseconds.
+     */
+    public long getBeginTime() {
+        return beginTime;
+    }
+
+    public int getGrid() {
+        return grid;
+    }
+
+    /**
+     * @return Number of seconds.
+     */
+    public int size() {
+        return max.length;
+    }
+
+    public double getMaxPercent(int second) {
+        return percent(max[second]);
+    }
+
+    public double getMeanPercent(int second) {
+        return percent(mean[second]);
+    }
+
+    /**
+     * @param zone Cell index, row * grid + column.
+     */
+    public double getZonePercent(int second, int zone) {
+        if (zone < 0 || zone >= grid * grid) {
+            throw new IllegalArgumentException("No zone " + zone + ".");
+        }
+        return percent(zones[second * grid * grid + zone]);
+    }
+
+    /**
+     * @param from Epoch milliseconds.
+     * @param to   Epoch milliseconds.
+     * @param zone Area in frame fractions [0,1], matched by the grid cells it overlaps. Null for the whole frame,
+     *             as is any zone if there is no grid.
+     * @return Max percent of the seconds overlapping the range, 0 if none.
+     */
+    public double getMaxPercent(long from, long to, Rectangle2D zone) {
+        int first = (int) Math.max(0, Math.floorDiv(from - beginTime, 1000L));
+        int last = (int) Math.min(max.length - 1, Math.floorDiv(to - beginTime, 1000L));
+        int value = 0;
+        if (zone == null || grid == 0) {
+            for (int i = first; i <= last; i++) {
+                value = Math.max(value, max[i] & 0xFF);
+            }
+            return value / 2.55;
+        }
+        int cells = grid * grid;
+        boolean[] selected = new boolean[cells];
+        for (int cell = 0; cell < cells; cell++) {
+            selected[cell] = zone.intersects((double) (cell % grid) / grid, (double) (cell / grid) / grid, 1.0 / grid, 1.0 / grid);
+        }
+        for (int i = first; i <= last; i++) {
+            for (int cell = 0; cell < cells; cell++) {
+                if (selected[cell]) {
+                    value = Math.max(value, zones[i * cells + cell] & 0xFF);
+                }
+            }
+        }
+        return value / 2.55;
+    }
+
+    public static File sidecarOf(File segment) {
+        return Sidecars.of(segment, SIDECAR_EXTENSION);
+    }
+
+    public void write(File file) {
+        Sidecars.write(file, MAGIC, VERSION, "motion activity", output -> {
+            output.writeLong(beginTime);
+            output.writeByte(grid);
+            output.writeInt(max.length);
+            output.write(max);
+            output.write(mean);
+            if (zones != null) {
+                output.write(zones);
+            }
+        });
+    }
+
+    public static MotionActivity read(File file) {
+        return Sidecars.read(file, MAGIC, VERSION, "motion activity", input -> {
+            long beginTime = input.readLong();
+            int grid = input.readUnsignedByte();
+            int seconds = input.readInt();
+            byte[] max = new byte[seconds];
+            byte[] mean = new byte[seconds];
+            input.readFully(max);
+            input.readFully(mean);
+            byte[] zones = null;
+            if (grid > 0) {
+                zones = new byte[seconds * grid * grid];
+                input.readFully(zones);
+            }
+            return new MotionActivity(beginTime, grid, max, mean, zones);
+        });
+    }
+
+    /**
+     * Scans the sidecars under the directory, no video is decoded. Unreadable sidecars are skipped.
+     *
+     * @param from       Epoch milliseconds.
+     * @param to         Epoch milliseconds.
+     * @param zone       See {@link #getMaxPercent(long, long, Rectangle2D)}.
+     * @param minPercent Changed pixels [0, 100].
+     * @return Segments with at least that much motion somewhere in the range, in no particular order.
+     */
+    public static List<File> findSegments(File dir, long from, long to, Rectangle2D zone, double minPercent) {
+        return Sidecars.find(dir, SIDECAR_EXTENSION, MotionActivity::read, (segment, activity) -> {
+            long end = activity.beginTime + activity.max.length * 1000L;
+            return end >= from && activity.beginTime <= to && activity.getMaxPercent(from, to, zone) >= minPercent;
+        });
+    }
+}
@@ -3,21 +3,32 @@ package recorder.record;
 import recorder.sampler.Sample;
 import recorder.sampler.SampleHandler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Iterator;
 
 
+/**
+ * Expects samples in time order, as the sampler hands them over.
+ */
 public class Recorder implements SampleHandler {
 
     private final ArrayList<Trigger> triggers = new ArrayList<>();
     private RecordHandler recordHandler;
-    private Date triggeredRecordBegin = null;
-    private Date triggeredRecordEnd = null;
+    /**
+     * Epoch milliseconds, valid if triggered.
+     */
+    private long triggeredRecordBegin = 0;
+    private long triggeredRecordEnd = 0;
+    private boolean triggered = false;
     private boolean record = false;
-    private final HashSet<Sample> skippedSamples = new HashSet<>();
+    /**
+     * Pre-roll candidates, oldest first. A sample leaves it once, either recorded or expired.
+     */
+    private final ArrayDeque<Sample> skippedSamples = new ArrayDeque<>();
     private boolean enabled = true;
+    private SampleDecoder sampleDecoder = null;
+    private final ArrayList<FrameVisitor> visitors = new ArrayList<>();
+    private final ArrayList<Trigger> visitorTriggers = new ArrayList<>();
 
     public RecordHandler getRecordHandler() {
         return recordHandler;
@@ -27,6 +38,18 @@ public class Recorder implements SampleHandler {
         this.recordHandler = recordHandler;
     }
 
+    public SampleDecoder getSampleDecoder() {
+        return sampleDecoder;
+    }
+
+    /**
+     * With a decoder, triggers providing a {@link FrameVisitor} share one decode pass per sample
+     * instead of each decoding the sample in {@link Trigger#check(Sample)}.
+     */
+    public void setSampleDecoder(SampleDecoder sampleDecoder) {
+        this.sampleDecoder = sampleDecoder;
+    }
+
     public ArrayList<Trigger> getTriggers() {
         return triggers;
     }
@@ -49,7 +72,7 @@ public class Recorder implements SampleHandler {
         // change it for future samples.
         checkTriggers(sample);
 
-        if (triggeredRecordEnd == null || sample.getBegin().after(triggeredRecordEnd)) {
+        if (!triggered || sample.getBeginTime() > triggeredRecordEnd) {
             // If there was no triggering or trigger action time ended.
             // Finalize recorder.record if it is not finalized yet.
             if (record) {
@@ -58,73 +81,95 @@ public class Recorder implements SampleHandler {
                 }
                 record = false;
             }
-            skippedSamples.add(sample);
+            skippedSamples.addLast(sample);
         } else {
             // Record sample.
             record = true;
 
             // triggeredRecordBegin changed after triggering in checkTriggers().
-            // We should check skippedSamples. May be some of them should
-            // be added in recorder.record.
-            skippedSamples.stream()
-                    .filter(
-                            skippedSample -> !skippedSample.getEnd().before(triggeredRecordBegin)
-                    )
-                    .forEach(skippedSample -> {
-                        if (recordHandler != null) {
-                            recordHandler.onRecord(skippedSample);
-                        }
-                    });
+            // Skipped samples inside the pre-roll are recorded in order, older ones
+            // can't be recorded anymore without breaking the order, so all of them leave.
+            Sample skippedSample;
+            while ((skippedSample = skippedSamples.pollFirst()) != null) {
+                if (skippedSample.getEndTime() >= triggeredRecordBegin && recordHandler != null) {
+                    recordHandler.onRecord(skippedSample);
+                } else {
+                    Sidecars.delete(skippedSample.getFile());
+                }
+            }
 
             if (recordHandler != null) {
                 recordHandler.onRecord(sample);
             }
         }
 
-        clearOldSkippedSamples(sample.getEnd());
+        clearOldSkippedSamples(sample.getEndTime());
     }
 
-    private void clearOldSkippedSamples(Date startingPoint) {
-        if (skippedSamples.isEmpty()) {
-            return;
-        }
-
+    private void clearOldSkippedSamples(long startingPoint) {
+        // Longest pre-roll of the triggers, they may have changed since the last sample.
         long maxDurationBefore = 0;
-        for (Trigger trigger : triggers) {
-            maxDurationBefore = Math.max(trigger.getDurationBefore(), maxDurationBefore);
+        for (int i = 0; i < triggers.size(); i++) {
+            maxDurationBefore = Math.max(maxDurationBefore, triggers.get(i).getDurationBefore());
         }
-
-        Date minTriggeredRecordBegin = new Date(startingPoint.getTime() - maxDurationBefore);
-
-        Iterator<Sample> skippedSamplesIterator = skippedSamples.iterator();
-        while (skippedSamplesIterator.hasNext()) {
-            Sample skippedSample = skippedSamplesIterator.next();
-            if (skippedSample.getEnd().before(minTriggeredRecordBegin)) {
-                skippedSamplesIterator.remove();
-            }
+        long minTriggeredRecordBegin = startingPoint - maxDurationBefore;
+        Sample oldest;
+        while ((oldest = skippedSamples.peekFirst()) != null && oldest.getEndTime() < minTriggeredRecordBegin) {
+            skippedSamples.pollFirst();
+            /* The record handler moves the sidecars of recorded samples, the others aren't kept */
+            Sidecars.delete(oldest.getFile());
         }
     }
 
     private void checkTriggers(Sample sample) {
         long maxDurationBefore = -1;
         long maxDurationAfter = -1;
-        for (Trigger trigger : triggers) {
-            if (checkTrigger(sample, trigger)) {
+        for (int i = 0; i < triggers.size(); i++) {
+            Trigger trigger = triggers.get(i);
+            if (!trigger.getMediaType().isCompatible(sample.getMediaType())) {
+                continue;
+            }
+            FrameVisitor visitor = sampleDecoder != null ? trigger.newFrameVisitor(sample) : null;
+            if (visitor != null) {
+                visitors.add(visitor);
+                visitorTriggers.add(trigger);
+            } else if (trigger.check(sample)) {
                 maxDurationBefore = Math.max(trigger.getDurationBefore(), maxDurationBefore);
                 maxDurationAfter = Math.max(trigger.getDurationAfter(), maxDurationAfter);
             }
         }
+        if (!visitors.isEmpty()) {
+            try {
+                sampleDecoder.decode(sample, visitors);
+                for (int i = 0; i < visitors.size(); i++) {
+                    if (visitors.get(i).finish()) {
+                        Trigger trigger = visitorTriggers.get(i);
+                        maxDurationBefore = Math.max(trigger.getDurationBefore(), maxDurationBefore);
+                        maxDurationAfter = Math.max(trigger.getDurationAfter(), maxDurationAfter);
+                    }
+                }
+            } catch (RuntimeException e) {
+                visitors.forEach(FrameVisitor::abort);
+                throw e;
+            } finally {
+                visitors.clear();
+                visitorTriggers.clear();
+            }
+        }
         if (maxDurationBefore != -1 && maxDurationAfter != -1) {
-            triggeredRecordBegin = new Date(sample.getBegin().getTime() - maxDurationBefore);
-            triggeredRecordEnd = new Date(sample.getBegin().getTime() + maxDurationAfter);
+            triggeredRecordBegin = sample.getBeginTime() - maxDurationBefore;
+            triggeredRecordEnd = sample.getBeginTime() + maxDurationAfter;
+            triggered = true;
         }
     }
 
-    private boolean checkTrigger(Sample sample, Trigger trigger) {
-        if (!trigger.getMediaType().isCompatible(sample.getMediaType())) {
-            return false;
+    /**
+     * Releases the triggers, e.g. when the camera stops.
+     */
+    public void release() {
+        for (int i = 0; i < triggers.size(); i++) {
+            triggers.get(i).release();
         }
-        return trigger.check(sample);
     }
 
     public boolean isEnabled() {
@@ -0,0 +1,18 @@
+package recorder.record;
+
+import recorder.sampler.Sample;
+
+import java.util.List;
+
+/**
+ * Decodes a sample once and fans its frames out to all visitors.
+ * Media not needed by any visitor is not decoded, decoding stops when every visitor has its answer.
+ */
+public interface SampleDecoder {
+
+    /**
+     * @param visitors Visitors which get frames, {@link FrameVisitor#finish()} is left to the caller.
+     */
+    public void decode(Sample sample, List<FrameVisitor> visitors);
+
+}
@@ -0,0 +1,204 @@
+package recorder.record;
+
+import recorder.engine.stream_chunker.SegmentWriter;
+import recorder.sampler.Sample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Files kept next to a segment, named after it plus an extension, e.g. "123.mp4.motion".
+ * Written under a ".part" name and renamed into place, so a sidecar with the final name is always complete.
+ */
+public final class Sidecars {
+
+    private static final Logger LOG = Logger.getLogger(Sidecars.class.getName());
+
+    public final static List<String> EXTENSIONS = Collections.unmodifiableList(Arrays.asList(
+            LoudnessEnvelope.SIDECAR_EXTENSION,
+            MotionActivity.SIDECAR_EXTENSION));
+
+    public static interface Writer {
+
+        public void write(DataOutputStream output) throws IOException;
+    }
+
+    public static interface Reader<T> {
+
+        public T read(DataInputStream input) throws IOException;
+    }
+
+    private Sidecars() {
+    }
+
+    /**
+     * @param segment Sample or segment file.
+     */
+    public static File of(File segment, String extension) {
+        return new File(segment.getPath() + extension);
+    }
+
+    /**
+     * @return true for sidecars and sidecars being written.
+     */
+    public static boolean isSidecar(String fileName) {
+        if (fileName.endsWith(SegmentWriter.PART_SUFFIX)) {
+            fileName = fileName.substring(0, fileName.length() - SegmentWriter.PART_SUFFIX.length());
+        }
+        for (String extension : EXTENSIONS) {
+            if (fileName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param name Kind of the sidecar for error messages.
+     */
+    public static void write(File file, int magic, int version, String name, Writer writer) {
+        File partFile = new File(file.getPath() + SegmentWriter.PART_SUFFIX);
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partFile)))) {
+                output.writeInt(magic);
+                output.writeByte(version);
+                writer.write(output);
+            }
+            SegmentWriter.moveAtomically(partFile, file);
+        } catch (IOException e) {
+            if (!partFile.delete() && partFile.exists()) {
+                LOG.log(Level.WARNING, "Can't delete \"{0}\".", partFile.getAbsolutePath());
+            }
+            throw new RuntimeException(String.format("Can't write %s \"%s\".", name, file.getAbsolutePath()), e);
+        }
+    }
+
+    public static <T> T read(File file, int magic, int version, String name, Reader<T> reader) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != magic || input.readByte() != version) {
+                throw new IOException("Not a " + name + ".");
+            }
+            return reader.read(input);
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException(String.format("Can't read %s \"%s\".", name, file.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * Scans the sidecars under the directory. Unreadable ones are logged and skipped.
+     *
+     * @param read  Reads a sidecar file.
+     * @param match Tells whether the segment of a read sidecar is found.
+     * @return Segments of the matching sidecars, in no particular order.
+     */
+    public static <T> List<File> find(File dir, String extension, Function<File, T> read, BiPredicate<File, T> match) {
+        List<Path> sidecars;
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            sidecars = paths
+                    .filter(path -> path.getFileName().toString().endsWith(extension))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Can't scan directory \"%s\".", dir.getAbsolutePath()), e);
+        }
+        List<File> segments = new ArrayList<>();
+        for (Path sidecar : sidecars) {
+            String name = sidecar.toString();
+            File segment = new File(name.substring(0, name.length() - extension.length()));
+            T content;
+            try {
+                content = read.apply(sidecar.toFile());
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Sidecar is skipped.", e);
+                continue;
+            }
+            if (match.test(segment, content)) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Moves the sidecars of a sample next to the segment it became.
+     */
+    public static void move(File sample, File segment) throws IOException {
+        for (String extension : EXTENSIONS) {
+            File sidecar = of(sample, extension);
+            if (sidecar.exists()) {
+                SegmentWriter.moveAtomically(sidecar, of(segment, extension));
+            }
+        }
+    }
+
+    /**
+     * Deletes the sidecars of a sample that isn't kept.
+     */
+    public static void delete(File sample) {
+        for (String extension : EXTENSIONS) {
+            File sidecar = of(sample, extension);
+            if (!sidecar.delete() && sidecar.exists()) {
+                LOG.log(Level.WARNING, "Can't delete sidecar \"{0}\".", sidecar.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Checks the sample with the triggers writing sidecars, in one decode pass if a decoder is given.
+     * Their results are ignored, so the sidecars exist before the sample is moved.
+     *
+     * @param sampleDecoder null to check the triggers one by one.
+     */
+    public static void write(Sample sample, List<Trigger> triggers, SampleDecoder sampleDecoder) {
+        List<FrameVisitor> visitors = new ArrayList<>();
+        for (Trigger trigger : triggers) {
+            if (!trigger.hasSidecar() || !trigger.getMediaType().isCompatible(sample.getMediaType())) {
+                continue;
+            }
+            try {
+                FrameVisitor visitor = sampleDecoder != null ? trigger.newFrameVisitor(sample) : null;
+                if (visitor != null) {
+                    visitors.add(visitor);
+                } else {
+                    trigger.check(sample);
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, String.format("Can't write sidecar of \"%s\".", sample.getFile().getAbsolutePath()), e);
+            }
+        }
+        if (visitors.isEmpty()) {
+            return;
+        }
+        try {
+            sampleDecoder.decode(sample, visitors);
+        } catch (RuntimeException e) {
+            visitors.forEach(FrameVisitor::abort);
+            LOG.log(Level.WARNING, String.format("Can't decode \"%s\" for sidecars.", sample.getFile().getAbsolutePath()), e);
+            return;
+        }
+        for (FrameVisitor visitor : visitors) {
+            try {
+                visitor.finish();
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, String.format("Can't write sidecar of \"%s\".", sample.getFile().getAbsolutePath()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package recorder.record;
+
+import recorder.common.HasMediaType;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Trigger evaluated on the live stream as it arrives, instead of on a closed sample.
+ * Gets frames and audio of its media type only, buffers are valid during the call only.
+ * Called from a single analysis thread.
+ */
+public interface StreamingTrigger extends HasMediaType {
+
+    /**
+     * @param gray      Downscaled 8 bit luma plane, width * height bytes without padding.
+     * @param timestamp Wall clock in microseconds.
+     * @return true if the frame shows activity.
+     */
+    public default boolean onVideoFrame(ByteBuffer gray, int width, int height, long timestamp) {
+        return false;
+    }
+
+    /**
+     * @param samples   Mono signed 16 bit samples.
+     * @param timestamp Wall clock in microseconds.
+     * @return true if the samples show activity.
+     */
+    public default boolean onAudioSamples(ShortBuffer samples, int sampleRate, long timestamp) {
+        return false;
+    }
+
+    /**
+     * Forgets the state of a previous stream, called before the first frame of a stream.
+     */
+    public default void reset() {
+    }
+
+}
@@ -46,4 +46,27 @@ public abstract class Trigger implements HasMediaType {
 
     protected abstract boolean _check(Sample sample);
 
+    /**
+     * Lets the trigger share the decode pass of a sample with other triggers, see {@link Recorder#setSampleDecoder(SampleDecoder)}.
+     *
+     * @return Visitor computing the result of {@link #check(Sample)} from decoded frames, null if the trigger
+     * doesn't decode the sample.
+     */
+    public FrameVisitor newFrameVisitor(Sample sample) {
+        return null;
+    }
+
+    /**
+     * @return true if checking a sample writes a sidecar next to its file, see {@link Sidecars}.
+     */
+    public boolean hasSidecar() {
+        return false;
+    }
+
+    /**
+     * Frees what the trigger keeps between samples, e.g. native buffers. The trigger can still be used afterwards.
+     */
+    public void release() {
+    }
+
 }
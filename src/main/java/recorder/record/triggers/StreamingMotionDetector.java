@@ -0,0 +1,109 @@
+package recorder.record.triggers;
+
+import recorder.common.MediaType;
+import recorder.record.StreamingTrigger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Percent of pixels changed between live frames one comparison interval apart.
+ */
+public class StreamingMotionDetector implements StreamingTrigger {
+
+    /**
+     * In microseconds.
+     */
+    public static final long DEFAULT_COMPARE_INTERVAL = 1000000;
+    public static final int PIXEL_THRESHOLD = 40;
+
+    /**
+     * Percent of frame change [0,100].
+     */
+    private final double thresholdMin;
+    private final double thresholdMax;
+    private final long compareInterval;
+    private byte[] reference = null;
+    private byte[] current = null;
+    private long referenceTimestamp = -1;
+    private double lastMotionPercent = 0;
+
+    public StreamingMotionDetector(double thresholdMin, double thresholdMax) {
+        this(thresholdMin, thresholdMax, DEFAULT_COMPARE_INTERVAL);
+    }
+
+    /**
+     * @param compareInterval In microseconds.
+     */
+    public StreamingMotionDetector(double thresholdMin, double thresholdMax, long compareInterval) {
+        if (thresholdMin < 0) {
+            throw new IllegalArgumentException("Threshold min value less than 0%.");
+        } else if (thresholdMax > 100) {
+            throw new IllegalArgumentException("Threshold max value greater than 100%.");
+        } else if (thresholdMin >= thresholdMax) {
+            throw new IllegalArgumentException("Threshold min value greater or equal max value.");
+        }
+        if (compareInterval < 0) {
+            throw new IllegalArgumentException("Compare interval is negative.");
+        }
+        this.thresholdMin = thresholdMin;
+        this.thresholdMax = thresholdMax;
+        this.compareInterval = compareInterval;
+    }
+
+    @Override
+    public MediaType getMediaType() {
+        return MediaType.VIDEO;
+    }
+
+    @Override
+    public boolean onVideoFrame(ByteBuffer gray, int width, int height, long timestamp) {
+        int pixels = width * height;
+        if (reference == null || reference.length != pixels) {
+            reference = new byte[pixels];
+            current = new byte[pixels];
+            referenceTimestamp = -1;
+        }
+        if (referenceTimestamp != -1 && timestamp - referenceTimestamp < compareInterval) {
+            return false;
+        }
+        gray.get(current, 0, pixels);
+        boolean motion = false;
+        if (referenceTimestamp != -1) {
+            int changed = 0;
+            for (int i = 0; i < pixels; i++) {
+                if (Math.abs((current[i] & 0xFF) - (reference[i] & 0xFF)) > PIXEL_THRESHOLD) {
+                    changed++;
+                }
+            }
+            lastMotionPercent = 100.0 * changed / pixels;
+            motion = lastMotionPercent >= thresholdMin && lastMotionPercent <= thresholdMax;
+        }
+        byte[] swap = reference;
+        reference = current;
+        current = swap;
+        referenceTimestamp = timestamp;
+        return motion;
+    }
+
+    @Override
+    public void reset() {
+        referenceTimestamp = -1;
+        lastMotionPercent = 0;
+    }
+
+    /**
+     * @return Percent of changed pixels in the last comparison.
+     */
+    public double getLastMotionPercent() {
+        return lastMotionPercent;
+    }
+
+    public double getThresholdMin() {
+        return thresholdMin;
+    }
+
+    public double getThresholdMax() {
+        return thresholdMax;
+    }
+
+}
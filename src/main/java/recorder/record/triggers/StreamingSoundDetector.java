@@ -0,0 +1,49 @@
+package recorder.record.triggers;
+
+import recorder.common.MediaType;
+import recorder.record.StreamingTrigger;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Fires on the first live sample louder than the threshold.
+ */
+public class StreamingSoundDetector implements StreamingTrigger {
+
+    /**
+     * Decibels [-infinity, 0]
+     */
+    private final int threshold;
+    /**
+     * Threshold as a 16 bit amplitude, so samples are compared without logarithms.
+     */
+    private final int amplitudeThreshold;
+
+    public StreamingSoundDetector(int threshold) {
+        if (threshold > 0) {
+            throw new IllegalArgumentException();
+        }
+        this.threshold = threshold;
+        this.amplitudeThreshold = (int) Math.floor(32768 * Math.pow(10, threshold / 20.0));
+    }
+
+    @Override
+    public MediaType getMediaType() {
+        return MediaType.AUDIO;
+    }
+
+    @Override
+    public boolean onAudioSamples(ShortBuffer samples, int sampleRate, long timestamp) {
+        for (int i = samples.position(); i < samples.limit(); i++) {
+            if (Math.abs(samples.get(i)) > amplitudeThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+}
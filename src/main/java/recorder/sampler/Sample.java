@@ -18,6 +18,11 @@ public class Sample implements HasMediaType {
     private int size;
     private final MediaType mediaType;
     private final Date end;
+    /**
+     * Epoch milliseconds of begin and end, for comparisons without Date.
+     */
+    private final long beginTime;
+    private final long endTime;
 
     public Sample(
             String samplerInfo,
@@ -52,6 +57,8 @@ public class Sample implements HasMediaType {
         this.size = size;
         this.mediaType = mediaType;
         this.end = new Date(begin.getTime() + duration);
+        this.beginTime = begin.getTime();
+        this.endTime = end.getTime();
     }
 
     public String getSamplerInfo() {
@@ -70,6 +77,13 @@ public class Sample implements HasMediaType {
         return begin;
     }
 
+    /**
+     * @return In epoch milliseconds.
+     */
+    public long getBeginTime() {
+        return beginTime;
+    }
+
     public String getExtension() {
         return extension;
     }
@@ -95,4 +109,11 @@ public class Sample implements HasMediaType {
         return end;
     }
 
+    /**
+     * @return In epoch milliseconds.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
 }
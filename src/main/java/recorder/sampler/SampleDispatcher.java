@@ -0,0 +1,305 @@
+package recorder.sampler;
+
+import recorder.common.Lane;
+import recorder.common.Threads;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe.
+ *
+ * Bounded share of {@link Threads#sharedPool()} handling the samples of all cameras.
+ * Each camera dispatches through its own {@link SampleLane}: samples of a lane are handled one by one in order,
+ * lanes with pending samples take turns, one sample each, so a busy camera can't starve the others.
+ * A lane holds a limited number of pending samples and blocks its producer beyond that.
+ */
+public class SampleDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(SampleDispatcher.class.getName());
+
+    public final static String WORKERS_PROPERTY = "recorder.sample.workers";
+    public final static int DEFAULT_LANE_CAPACITY = 16;
+
+    private static volatile SampleDispatcher shared = null;
+
+    private final java.util.concurrent.Executor pool;
+    /**
+     * Turns of the lanes with pending samples, in arrival order, see {@link Lane#Lane(java.util.concurrent.Executor, boolean)}.
+     */
+    private final ArrayDeque<Runnable> readyLanes = new ArrayDeque<>();
+    private final java.util.concurrent.Executor turns = this::enqueue;
+    private final int workers;
+    private int activeWorkers = 0;
+    private long dispatchedSamples = 0;
+    private long handledSamples = 0;
+    private long failedSamples = 0;
+
+    /**
+     * @param workers Maximum number of samples handled at once across all lanes.
+     */
+    public SampleDispatcher(int workers) {
+        this(workers, Threads.sharedPool());
+    }
+
+    /**
+     * @param pool Runs the workers.
+     */
+    public SampleDispatcher(int workers, java.util.concurrent.Executor pool) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers number is less than one.");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool is null.");
+        }
+        this.workers = workers;
+        this.pool = pool;
+    }
+
+    /**
+     * Dispatcher of all samplers, its size is read from the "recorder.sample.workers" system property,
+     * the processors number by default.
+     */
+    public static SampleDispatcher shared() {
+        SampleDispatcher dispatcher = shared;
+        if (dispatcher == null) {
+            synchronized (SampleDispatcher.class) {
+                dispatcher = shared;
+                if (dispatcher == null) {
+                    int workers = Integer.getInteger(WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors());
+                    shared = dispatcher = new SampleDispatcher(workers);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    public SampleLane newLane(String name) {
+        return new SampleLane(name, DEFAULT_LANE_CAPACITY);
+    }
+
+    public SampleLane newLane(String name, int capacity) {
+        return new SampleLane(name, capacity);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public synchronized int getActiveWorkers() {
+        return activeWorkers;
+    }
+
+    /**
+     * @return Lanes waiting for a worker.
+     */
+    public synchronized int getReadyLanes() {
+        return readyLanes.size();
+    }
+
+    public synchronized long getDispatchedSamples() {
+        return dispatchedSamples;
+    }
+
+    public synchronized long getHandledSamples() {
+        return handledSamples;
+    }
+
+    public synchronized long getFailedSamples() {
+        return failedSamples;
+    }
+
+    private void enqueue(Runnable turn) {
+        synchronized (this) {
+            readyLanes.addLast(turn);
+        }
+        startWorker();
+    }
+
+    private void startWorker() {
+        synchronized (this) {
+            if (readyLanes.isEmpty() || activeWorkers >= workers) {
+                return;
+            }
+            activeWorkers++;
+        }
+        try {
+            pool.execute(this::work);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                activeWorkers--;
+            }
+            throw e;
+        }
+    }
+
+    private void work() {
+        boolean idle = false;
+        try {
+            while (true) {
+                Runnable turn;
+                synchronized (this) {
+                    turn = readyLanes.pollFirst();
+                    if (turn == null) {
+                        activeWorkers--;
+                        idle = true;
+                        return;
+                    }
+                }
+                turn.run();
+            }
+        } finally {
+            if (!idle) {
+                // An Error left the loop, another pool thread takes the waiting lanes over.
+                synchronized (this) {
+                    activeWorkers--;
+                }
+                try {
+                    startWorker();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Can't start sample worker.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ordered queue of one camera. Thread safe.
+     */
+    public class SampleLane {
+
+        private final String name;
+        private final int capacity;
+        private final Lane lane = new Lane(turns, true);
+        /**
+         * Dispatched samples not taken by a worker yet.
+         */
+        private int depth = 0;
+        private int maxDepth = 0;
+        private long handled = 0;
+        private long failed = 0;
+        /**
+         * In milliseconds, from dispatch to the start of handling.
+         */
+        private long totalLatency = 0;
+        private long maxLatency = 0;
+        /**
+         * In milliseconds.
+         */
+        private long totalHandlingTime = 0;
+
+        private SampleLane(String name, int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Lane capacity is less than one.");
+            }
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Queues the sample for the handler, waits while the lane is full.
+         * An interrupted wait still queues the sample and keeps the interrupt status, samples are never dropped.
+         */
+        public void dispatch(SampleHandler handler, Sample sample) {
+            synchronized (this) {
+                boolean interrupted = false;
+                while (depth >= capacity && !interrupted) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (SampleDispatcher.this) {
+                dispatchedSamples++;
+            }
+            long dispatched = System.currentTimeMillis();
+            lane.execute(() -> handle(handler, sample, dispatched));
+        }
+
+        private void handle(SampleHandler handler, Sample sample, long dispatched) {
+            long start = System.currentTimeMillis();
+            synchronized (this) {
+                depth--;
+                long latency = start - dispatched;
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+                notifyAll();
+            }
+            boolean taskFailed = true;
+            try {
+                handler.onSample(sample);
+                taskFailed = false;
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, String.format("Error in sampleHandler of lane \"%s\".", name), e);
+            } finally {
+                // Errors are counted too, the lane goes on with its next sample.
+                synchronized (this) {
+                    handled++;
+                    if (taskFailed) {
+                        failed++;
+                    }
+                    totalHandlingTime += System.currentTimeMillis() - start;
+                }
+                synchronized (SampleDispatcher.this) {
+                    handledSamples++;
+                    if (taskFailed) {
+                        failedSamples++;
+                    }
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public synchronized int getDepth() {
+            return depth;
+        }
+
+        public synchronized int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public synchronized long getHandledSamples() {
+            return handled;
+        }
+
+        public synchronized long getFailedSamples() {
+            return failed;
+        }
+
+        /**
+         * @return In milliseconds.
+         */
+        public synchronized long getMaxLatency() {
+            return maxLatency;
+        }
+
+        /**
+         * @return In milliseconds, 0 if nothing is handled yet.
+         */
+        public synchronized long getAverageLatency() {
+            return handled == 0 ? 0 : totalLatency / handled;
+        }
+
+        /**
+         * @return In milliseconds, 0 if nothing is handled yet.
+         */
+        public synchronized long getAverageHandlingTime() {
+            return handled == 0 ? 0 : totalHandlingTime / handled;
+        }
+    }
+}
@@ -5,12 +5,14 @@ import recorder.common.Executor;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,12 +21,28 @@ public class Sampler extends Executor {
 
     private static final Logger LOG = Logger.getLogger(Sampler.class.getName());
     public static final String VERSION = "1.0";
+    /**
+     * In milliseconds, a sample begins up to this much off its raw sample date so it continues the previous one.
+     */
+    public static final long MAX_SNAP = 10000;
+    /**
+     * In milliseconds, a raw sample waits this long for older ones closed after it.
+     * Older ones arriving later aren't handled, their files stay in the temp dir for the owner's leftover sweep.
+     */
+    public static final long REORDER_WINDOW = 2000;
     private volatile SampleHandler sampleHandler;
     private Date lastSampleEnd;
     private volatile SamplerEngine samplerEngine = null;
     private final SampleFactory sampleFactory;
-    private final Map<File, Date> rawSamples = new ConcurrentHashMap<>();
+    /**
+     * Raw samples ordered by begin then arrival, see {@link RawSample#ORDER}.
+     */
+    private final PriorityBlockingQueue<RawSample> rawSamples = new PriorityBlockingQueue<>(16, RawSample.ORDER);
+    private final AtomicLong rawSampleSequence = new AtomicLong();
+    private final List<RawSample> rawSampleBatch = new ArrayList<>();
+    private long lastRawSampleBegin = Long.MIN_VALUE;
     private volatile boolean sampleEngineIsExecuting;
+    private volatile SampleDispatcher.SampleLane sampleLane;
     private enum RunMethod {
         RUN, RUN_PACKET
     }
@@ -38,47 +56,37 @@ public class Sampler extends Executor {
         samplerEngine.initRawSampleHandler((file, date) -> {
             Objects.requireNonNull(file);
             Objects.requireNonNull(date);
-            synchronized (rawSamples) {
-                rawSamples.put(file, date);
-                rawSamples.notify();
-            }
+            rawSamples.offer(new RawSample(rawSampleSequence.incrementAndGet(), file, date));
         });
 
         samplerEngine.getListeners().add(new Listener() {
             @Override
             public void onStart(Executor executor) {
-                synchronized (rawSamples) {
-                    sampleEngineIsExecuting = true;
-                    rawSamples.notify();
-                }
+                sampleEngineIsExecuting = true;
+                rawSamples.offer(RawSample.WAKE_UP);
             }
 
             @Override
             public void onStop(Executor executor) {
-                synchronized (rawSamples) {
-                    sampleEngineIsExecuting = false;
-                    rawSamples.notify();
-                }
+                sampleEngineIsExecuting = false;
+                rawSamples.offer(RawSample.WAKE_UP);
             }
 
             @Override
             public void onCrash(Executor executor) {
-                synchronized (rawSamples) {
-                    sampleEngineIsExecuting = false;
-                    rawSamples.notify();
-                }
+                sampleEngineIsExecuting = false;
+                rawSamples.offer(RawSample.WAKE_UP);
             }
         });
 
         this.samplerEngine = samplerEngine;
         this.sampleFactory = sampleFactory;
+        this.sampleLane = SampleDispatcher.shared().newLane(samplerEngine.getTempDir().getPath());
 
         getListeners().add(new Listener() {
             @Override
             public void onStoping(Executor executor) {
-                synchronized (rawSamples) {
-                    rawSamples.notify();
-                }
+                rawSamples.offer(RawSample.WAKE_UP);
             }
 
         });
@@ -100,6 +108,7 @@ public class Sampler extends Executor {
             sampleEngineIsExecuting = true;
             samplerEngine.start();
 
+            long wait = -1;
             while (!isStoping()) {
                 LOG.log(Level.FINER, "Import samples files.");
                 /**
@@ -109,17 +118,17 @@ public class Sampler extends Executor {
                     throw new RuntimeException("Unexpected stop of recorder.sampler recorder.engine.");
                 }
 
-                synchronized (rawSamples) {
-                    if (rawSamples.isEmpty() && sampleEngineIsExecuting && !isStoping()) {
-                        try {
-                            rawSamples.wait();
-                        } catch (InterruptedException interruptedException) {
-                            Thread.currentThread().interrupt();
-                        }
+                try {
+                    RawSample rawSample = wait < 0 ? rawSamples.take() : rawSamples.poll(wait, TimeUnit.MILLISECONDS);
+                    if (rawSample != null) {
+                        rawSampleBatch.add(rawSample);
                     }
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
 
-                handleRawSamples();
+                wait = handleRawSamples(false);
             }
         } catch (RuntimeException e) {
             throw new RuntimeException("Sampler is stopped on error.", e);
@@ -127,7 +136,7 @@ public class Sampler extends Executor {
             if (samplerEngine != null) {
                 samplerEngine.stopAndWaitForInfinitely();
             }
-            handleRawSamples();
+            handleRawSamples(true);
             LOG.log(Level.FINER, "Sampler is stopped.");
         }
     }
@@ -145,6 +154,7 @@ public class Sampler extends Executor {
             sampleEngineIsExecuting = true;
             samplerEngine.startPacket();
 
+            long wait = -1;
             while (!isStoping()) {
                 LOG.log(Level.FINER, "Importing sample files.");
                 /**
@@ -154,17 +164,17 @@ public class Sampler extends Executor {
                     throw new RuntimeException("Unexpected stop of recorder.sampler recorder.engine.");
                 }
 
-                synchronized (rawSamples) {
-                    if (rawSamples.isEmpty() && sampleEngineIsExecuting && !isStoping()) {
-                        try {
-                            rawSamples.wait();
-                        } catch (InterruptedException interruptedException) {
-                            Thread.currentThread().interrupt();
-                        }
+                try {
+                    RawSample rawSample = wait < 0 ? rawSamples.take() : rawSamples.poll(wait, TimeUnit.MILLISECONDS);
+                    if (rawSample != null) {
+                        rawSampleBatch.add(rawSample);
                     }
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
 
-                handleRawSamples();
+                wait = handleRawSamples(false);
             }
         } catch (RuntimeException e) {
             throw new RuntimeException("Sampler is stopped on error.", e);
@@ -172,7 +182,7 @@ public class Sampler extends Executor {
             if (samplerEngine != null) {
                 samplerEngine.stopAndWaitForInfinitely();
             }
-            handleRawSamples();
+            handleRawSamples(true);
             LOG.log(Level.FINER, "Sampler is stopped.");
         }
 
@@ -186,52 +196,134 @@ public class Sampler extends Executor {
         this.sampleHandler = sampleHandler;
     }
 
-    private void handleRawSamples() {
-        rawSamples.forEach((File file, Date date) -> {
-            LOG.log(Level.FINEST, "Attempt to import sample file {0}", file.getName());
-            if (lastSampleEnd != null) {
-                long shift = Math.abs(date.getTime() - lastSampleEnd.getTime());
-                if (shift < 10000) {
-                    // Shift is not big, all is fine.
-                    date = lastSampleEnd;
-                } else {
-                    LOG.log(Level.WARNING, "Shift is larger than 10 seconds.");
+    /**
+     * Moves the handling of next samples to another dispatcher, {@link SampleDispatcher#shared()} by default.
+     */
+    public void setSampleDispatcher(SampleDispatcher sampleDispatcher) {
+        Objects.requireNonNull(sampleDispatcher);
+        sampleLane = sampleDispatcher.newLane(samplerEngine.getTempDir().getPath());
+    }
+
+    /**
+     * @return Lane of this sampler for queue depth and latency metrics.
+     */
+    public SampleDispatcher.SampleLane getSampleLane() {
+        return sampleLane;
+    }
+
+    /**
+     * Handles the held raw samples with all queued behind them, in order.
+     * A raw sample is held for {@link #REORDER_WINDOW}, so one closed a bit later than the next still goes first.
+     *
+     * @param flush true to handle all of them, e.g. on stop.
+     * @return In milliseconds, until the first raw sample still held is due, -1 if none is held.
+     */
+    private long handleRawSamples(boolean flush) {
+        rawSamples.drainTo(rawSampleBatch);
+        /* drainTo doesn't guarantee the queue order */
+        rawSampleBatch.sort(RawSample.ORDER);
+        long now = System.currentTimeMillis();
+        int handled = 0;
+        try {
+            while (handled < rawSampleBatch.size()) {
+                RawSample rawSample = rawSampleBatch.get(handled);
+                if (!flush && rawSample.arrival + REORDER_WINDOW > now) {
+                    break;
                 }
+                handled++;
+                handleRawSample(rawSample);
             }
+        } finally {
+            rawSampleBatch.subList(0, handled).clear();
+        }
+        return rawSampleBatch.isEmpty() ? -1 : Math.max(1, rawSampleBatch.get(0).arrival + REORDER_WINDOW - now);
+    }
 
-            Sample sample;
+    private void handleRawSample(RawSample rawSample) {
+        if (rawSample == RawSample.WAKE_UP) {
+            return;
+        }
+        File file = rawSample.file;
+        Date date = rawSample.date;
+        LOG.log(Level.FINEST, "Attempt to import sample file {0}", file.getName());
+        if (date.getTime() < lastRawSampleBegin) {
+            // Handlers expect samples in order, the next ones are handled already.
+            // The footage is kept in the temp dir, the owner collects leftovers when the sampler stops.
+            LOG.log(Level.WARNING, String.format("Raw sample \"%s\" is older than the previous one, left for the leftover sweep.", file.getName()));
+            return;
+        }
+        lastRawSampleBegin = date.getTime();
+        if (lastSampleEnd != null) {
+            long shift = Math.abs(date.getTime() - lastSampleEnd.getTime());
+            if (shift < MAX_SNAP) {
+                // Shift is not big, all is fine.
+                date = lastSampleEnd;
+            } else {
+                LOG.log(Level.WARNING, "Shift is larger than 10 seconds.");
+            }
+        }
+
+        Sample sample;
+        try {
+            sample = sampleFactory.createSample(this, date, file);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Can't create sample.", e);
             try {
-                sample = sampleFactory.createSample(this, date, file);
-            } catch (Exception e) {
-                LOG.log(Level.WARNING, "Can't create sample.", e);
-                rawSamples.remove(file);
-                try {
-                    Files.delete(file.toPath());
-                } catch (IOException | RuntimeException deleFileException) {
-                    LOG.log(Level.WARNING, String.format("Can't delete corrupted raw sample file^ \"%s\".", file.getAbsolutePath()), deleFileException);
-                }
-                return;
+                Files.delete(file.toPath());
+            } catch (IOException | RuntimeException deleFileException) {
+                LOG.log(Level.WARNING, String.format("Can't delete corrupted raw sample file^ \"%s\".", file.getAbsolutePath()), deleFileException);
             }
+            return;
+        }
 
-            lastSampleEnd = new Date(sample.getEnd().getTime());
+        lastSampleEnd = new Date(sample.getEnd().getTime());
 
-            if (sampleHandler != null) {
-                ExecutorService executorService = Executors.newSingleThreadExecutor();
-                executorService.submit(() -> {
-                    try {
-                        sampleHandler.onSample(sample);
-                    }catch (RuntimeException e) {
-                        LOG.log(Level.WARNING, "Error in sampleHandler.", e);
-                    }
-                });
-                executorService.shutdown();
-            }
-            rawSamples.remove(file);
-        });
+        SampleHandler handler = sampleHandler;
+        if (handler != null) {
+            sampleLane.dispatch(handler, sample);
+        }
     }
 
     public String getInfo() {
         return VERSION + "/" + samplerEngine.getInfo();
     }
 
+    /**
+     * Chunk file handed over by the engine, numbered in order of arrival.
+     */
+    private static final class RawSample {
+
+        /**
+         * Ordered by stream begin, ties by arrival.
+         */
+        static final Comparator<RawSample> ORDER = Comparator
+                .comparingLong((RawSample rawSample) -> rawSample.begin)
+                .thenComparingLong(rawSample -> rawSample.sequence);
+
+        /**
+         * Queued to wake the sampler up on engine and sampler events, sorted first and skipped.
+         */
+        static final RawSample WAKE_UP = new RawSample(0, null, new Date(Long.MIN_VALUE));
+
+        final long sequence;
+        final File file;
+        final Date date;
+        /**
+         * In milliseconds.
+         */
+        final long begin;
+        /**
+         * In milliseconds, when the engine handed it over.
+         */
+        final long arrival;
+
+        RawSample(long sequence, File file, Date date) {
+            this.sequence = sequence;
+            this.file = file;
+            this.date = date;
+            this.begin = date.getTime();
+            this.arrival = System.currentTimeMillis();
+        }
+    }
+
 }
@@ -0,0 +1,207 @@
+package recorder.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LaneTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Runs its tasks only when asked, in FIFO order.
+     */
+    private static class ManualPool implements java.util.concurrent.Executor {
+
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            queue.addLast(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = queue.pollFirst()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static List<Integer> range(int count) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void runsTasksOneByOneInOrder() throws InterruptedException {
+        Lane lane = new Lane(pool);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            int number = i;
+            lane.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                order.add(number);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(range(1000), order);
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void lanesOfOnePoolKeepTheirOwnOrder() throws InterruptedException {
+        int lanes = 8;
+        int tasks = 200;
+        List<List<Integer>> orders = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(lanes * tasks);
+        List<Lane> laneList = new ArrayList<>();
+        for (int l = 0; l < lanes; l++) {
+            orders.add(Collections.synchronizedList(new ArrayList<>()));
+            laneList.add(new Lane(pool));
+        }
+        for (int i = 0; i < tasks; i++) {
+            for (int l = 0; l < lanes; l++) {
+                List<Integer> order = orders.get(l);
+                int number = i;
+                laneList.get(l).execute(() -> {
+                    order.add(number);
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> order : orders) {
+            assertEquals(range(tasks), order);
+        }
+    }
+
+    @Test
+    public void failedTaskDoesNotStopTheLane() throws InterruptedException {
+        Lane lane = new Lane(pool);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        lane.execute(() -> order.add(0));
+        lane.execute(() -> {
+            throw new RuntimeException("Expected by the test.");
+        });
+        lane.execute(() -> order.add(2));
+        lane.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 2), order);
+    }
+
+    @Test
+    public void errorMovesRemainingTasksToNewTurn() {
+        ManualPool manualPool = new ManualPool();
+        Lane lane = new Lane(manualPool);
+        List<Integer> order = new ArrayList<>();
+        lane.execute(() -> order.add(0));
+        lane.execute(() -> {
+            throw new AssertionError("Expected by the test.");
+        });
+        lane.execute(() -> order.add(2));
+        try {
+            manualPool.runAll();
+            fail("Error isn't propagated to the pool.");
+        } catch (AssertionError e) {
+            assertEquals("Expected by the test.", e.getMessage());
+        }
+        assertEquals(1, manualPool.queue.size());
+        manualPool.runAll();
+        assertEquals(Arrays.asList(0, 2), order);
+        assertEquals(0, lane.getPendingTasks());
+    }
+
+    @Test
+    public void yieldingLanesTakeTurns() {
+        ManualPool manualPool = new ManualPool();
+        Lane first = new Lane(manualPool, true);
+        Lane second = new Lane(manualPool, true);
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int number = i;
+            first.execute(() -> order.add("a" + number));
+            second.execute(() -> order.add("b" + number));
+        }
+        manualPool.runAll();
+        assertEquals(Arrays.asList("a0", "b0", "a1", "b1", "a2", "b2"), order);
+    }
+
+    @Test
+    public void nonYieldingLaneDrainsInOneTurn() {
+        ManualPool manualPool = new ManualPool();
+        Lane first = new Lane(manualPool);
+        Lane second = new Lane(manualPool);
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            int number = i;
+            first.execute(() -> order.add("a" + number));
+            second.execute(() -> order.add("b" + number));
+        }
+        assertEquals(2, manualPool.queue.size());
+        manualPool.runAll();
+        assertEquals(Arrays.asList("a0", "a1", "b0", "b1"), order);
+    }
+
+    @Test
+    public void rejectedTurnDropsTasksAndLaneRecovers() {
+        ManualPool manualPool = new ManualPool();
+        boolean[] reject = {true};
+        Lane lane = new Lane(task -> {
+            if (reject[0]) {
+                throw new RejectedExecutionException("Expected by the test.");
+            }
+            manualPool.execute(task);
+        });
+        List<Integer> order = new ArrayList<>();
+        try {
+            lane.execute(() -> order.add(0));
+            fail("Rejection isn't propagated.");
+        } catch (RejectedExecutionException e) {
+            assertEquals(0, lane.getPendingTasks());
+        }
+        reject[0] = false;
+        lane.execute(() -> order.add(1));
+        manualPool.runAll();
+        assertEquals(Collections.singletonList(1), order);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNullTask() {
+        new Lane(pool).execute(null);
+    }
+}
@@ -0,0 +1,123 @@
+package recorder.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RealFftTest {
+
+    /**
+     * @return |X(k)|^2 for k = 0..size/2.
+     */
+    private static double[] naivePowerSpectrum(float[] input, int size) {
+        double[] power = new double[size / 2 + 1];
+        for (int k = 0; k <= size / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for (int n = 0; n < size; n++) {
+                double angle = 2 * Math.PI * k * n / size;
+                re += input[n] * Math.cos(angle);
+                im -= input[n] * Math.sin(angle);
+            }
+            power[k] = re * re + im * im;
+        }
+        return power;
+    }
+
+    private static void assertMatchesNaive(float[] input, int size) {
+        RealFft fft = new RealFft(size);
+        float[] power = new float[size / 2 + 1];
+        fft.powerSpectrum(input, power);
+        double[] expected = naivePowerSpectrum(input, size);
+        double scale = 0;
+        for (double value : expected) {
+            scale = Math.max(scale, value);
+        }
+        for (int k = 0; k < expected.length; k++) {
+            assertEquals("Size " + size + ", bin " + k, expected[k], power[k], 1e-4 * scale + 1e-6);
+        }
+    }
+
+    @Test
+    public void matchesNaiveDftOnRandomInput() {
+        Random random = new Random(42);
+        for (int size = 4; size <= 2048; size <<= 1) {
+            float[] input = new float[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = random.nextFloat() * 2 - 1;
+            }
+            assertMatchesNaive(input, size);
+        }
+    }
+
+    @Test
+    public void matchesNaiveDftOnSineBetweenBins() {
+        int size = 512;
+        float[] input = new float[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (float) (1000 * Math.sin(2 * Math.PI * 37.3 * i / size) + 200);
+        }
+        assertMatchesNaive(input, size);
+    }
+
+    @Test
+    public void transformsFirstSizeSamplesOnly() {
+        int size = 64;
+        Random random = new Random(7);
+        float[] input = new float[size + 16];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat();
+        }
+        assertMatchesNaive(input, size);
+    }
+
+    @Test
+    public void putsSineIntoItsBin() {
+        int size = 256;
+        int bin = 19;
+        float[] input = new float[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (float) Math.cos(2 * Math.PI * bin * i / size);
+        }
+        float[] power = new float[size / 2 + 1];
+        new RealFft(size).powerSpectrum(input, power);
+        // |X(k)| is size / 2 for a unit cosine.
+        assertEquals(size * size / 4.0, power[bin], 1e-2);
+        for (int k = 0; k < power.length; k++) {
+            if (k != bin) {
+                assertEquals("Bin " + k, 0, power[k], 1e-2);
+            }
+        }
+    }
+
+    @Test
+    public void reusesBuffersAcrossTransforms() {
+        int size = 128;
+        Random random = new Random(3);
+        RealFft fft = new RealFft(size);
+        float[] power = new float[size / 2 + 1];
+        for (int run = 0; run < 3; run++) {
+            float[] input = new float[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = random.nextFloat();
+            }
+            fft.powerSpectrum(input, power);
+            double[] expected = naivePowerSpectrum(input, size);
+            for (int k = 0; k < expected.length; k++) {
+                assertEquals(expected[k], power[k], 1e-3 * (expected[0] + 1));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeNotPowerOfTwo() {
+        new RealFft(48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeBelowFour() {
+        new RealFft(2);
+    }
+}
@@ -0,0 +1,222 @@
+package recorder.engine.stream_chunker;
+
+import org.bytedeco.javacpp.avcodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.junit.Assert.*;
+
+public class PacketRingTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private PacketRing ring;
+    private final List<avcodec.AVPacket> packets = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        ring = new PacketRing(4);
+        ring.setVideoStreamIndex(VIDEO);
+    }
+
+    @After
+    public void tearDown() {
+        ring.release();
+        packets.forEach(packet -> av_packet_free(packet));
+    }
+
+    /**
+     * @param pts Identifies the packet.
+     */
+    private avcodec.AVPacket packet(int streamIndex, long pts, boolean key) {
+        avcodec.AVPacket packet = av_packet_alloc();
+        packets.add(packet);
+        assertEquals(0, av_new_packet(packet, 16));
+        packet.stream_index(streamIndex);
+        packet.pts(pts);
+        packet.flags(key ? AV_PKT_FLAG_KEY : 0);
+        return packet;
+    }
+
+    private List<Long> drain() throws InterruptedException {
+        List<Long> polled = new ArrayList<>();
+        avcodec.AVPacket target = av_packet_alloc();
+        try {
+            while (ring.poll(target, 0)) {
+                polled.add(target.pts());
+                av_packet_unref(target);
+            }
+        } finally {
+            av_packet_free(target);
+        }
+        return polled;
+    }
+
+    private static List<Long> list(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    @Test
+    public void pollsInOfferOrder() throws InterruptedException {
+        assertTrue(ring.offer(packet(VIDEO, 1, true)));
+        assertTrue(ring.offer(packet(AUDIO, 2, false)));
+        assertTrue(ring.offer(packet(VIDEO, 3, false)));
+        assertEquals(3, ring.getSize());
+        assertEquals(list(1, 2, 3), drain());
+        assertEquals(0, ring.getSize());
+    }
+
+    @Test
+    public void offeredPacketStaysWithCaller() throws InterruptedException {
+        avcodec.AVPacket packet = packet(VIDEO, 1, true);
+        assertTrue(ring.offer(packet));
+        assertEquals(1, packet.pts());
+        assertNotNull(packet.data());
+        assertEquals(list(1), drain());
+    }
+
+    @Test
+    public void fullRingDropsRestOfGop() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.offer(packet(VIDEO, 2, false));
+        ring.offer(packet(VIDEO, 3, false));
+        ring.offer(packet(VIDEO, 4, false));
+        assertFalse(ring.offer(packet(VIDEO, 5, false)));
+        assertEquals(list(1, 2, 3, 4), drain());
+        // Room again, but the GOP of the dropped packet can't be decoded.
+        assertFalse(ring.offer(packet(VIDEO, 6, false)));
+        assertTrue(ring.offer(packet(VIDEO, 7, true)));
+        assertTrue(ring.offer(packet(VIDEO, 8, false)));
+        assertEquals(list(7, 8), drain());
+        assertEquals(2, ring.getDroppedPackets());
+    }
+
+    @Test
+    public void keyPacketEvictsOldestGop() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.offer(packet(VIDEO, 2, false));
+        ring.offer(packet(VIDEO, 3, true));
+        ring.offer(packet(VIDEO, 4, false));
+        assertTrue(ring.offer(packet(VIDEO, 5, true)));
+        assertEquals(list(3, 4, 5), drain());
+        assertEquals(2, ring.getDroppedPackets());
+    }
+
+    @Test
+    public void evictionKeepsPacketsOfOtherStreamsWithTheirGop() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.offer(packet(AUDIO, 2, true));
+        ring.offer(packet(VIDEO, 3, true));
+        ring.offer(packet(AUDIO, 4, true));
+        assertTrue(ring.offer(packet(VIDEO, 5, true)));
+        // Audio key packets aren't GOP boundaries.
+        assertEquals(list(3, 4, 5), drain());
+    }
+
+    @Test
+    public void fullRingDropsOtherStreamsOneByOne() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.offer(packet(VIDEO, 2, false));
+        ring.offer(packet(VIDEO, 3, false));
+        ring.offer(packet(VIDEO, 4, false));
+        assertFalse(ring.offer(packet(AUDIO, 5, false)));
+        drain();
+        // A dropped audio packet doesn't break the video GOP.
+        assertTrue(ring.offer(packet(VIDEO, 6, false)));
+        assertEquals(list(6), drain());
+    }
+
+    @Test
+    public void everyKeyPacketIsBoundaryWithoutVideoStream() throws InterruptedException {
+        ring.setVideoStreamIndex(-1);
+        ring.offer(packet(AUDIO, 1, true));
+        ring.offer(packet(AUDIO, 2, false));
+        ring.offer(packet(AUDIO, 3, true));
+        ring.offer(packet(AUDIO, 4, false));
+        assertTrue(ring.offer(packet(AUDIO, 5, true)));
+        assertEquals(list(3, 4, 5), drain());
+    }
+
+    @Test
+    public void evictingSingleGopEmptiesRing() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.offer(packet(VIDEO, 2, false));
+        ring.offer(packet(VIDEO, 3, false));
+        ring.offer(packet(VIDEO, 4, false));
+        assertTrue(ring.offer(packet(VIDEO, 5, true)));
+        assertEquals(list(5), drain());
+        assertEquals(4, ring.getDroppedPackets());
+    }
+
+    @Test
+    public void countsOfferedPacketsAndHighWaterMark() throws InterruptedException {
+        for (int i = 0; i < 6; i++) {
+            ring.offer(packet(VIDEO, i, i % 3 == 0));
+        }
+        assertEquals(6, ring.getOfferedPackets());
+        assertEquals(4, ring.getHighWaterMark());
+        assertEquals(1.0, ring.getOccupancy(), 0);
+        drain();
+        assertEquals(4, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void closedRingReturnsRestAndFailsFast() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.close();
+        assertTrue(ring.isClosed());
+        long start = System.currentTimeMillis();
+        assertEquals(list(1), drain());
+        avcodec.AVPacket target = av_packet_alloc();
+        try {
+            assertFalse(ring.poll(target, 10000));
+        } finally {
+            av_packet_free(target);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void pollTimesOutOnEmptyRing() throws InterruptedException {
+        avcodec.AVPacket target = av_packet_alloc();
+        try {
+            assertFalse(ring.poll(target, 20));
+        } finally {
+            av_packet_free(target);
+        }
+    }
+
+    @Test
+    public void clearResetsGopDropping() throws InterruptedException {
+        ring.offer(packet(VIDEO, 1, true));
+        ring.offer(packet(VIDEO, 2, false));
+        ring.offer(packet(VIDEO, 3, false));
+        ring.offer(packet(VIDEO, 4, false));
+        ring.offer(packet(VIDEO, 5, false));
+        ring.clear();
+        assertEquals(0, ring.getSize());
+        assertTrue(ring.offer(packet(VIDEO, 6, false)));
+        assertEquals(list(6), drain());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedRingRejectsPackets() {
+        ring.release();
+        ring.offer(packet(VIDEO, 1, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new PacketRing(0);
+    }
+}
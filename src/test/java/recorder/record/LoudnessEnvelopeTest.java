@@ -0,0 +1,143 @@
+package recorder.record;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LoudnessEnvelopeTest {
+
+    private final static long BEGIN = 1_500_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Intervals of 100 ms: silence, -60, -20, -40, -3 dBFS.
+     */
+    private static LoudnessEnvelope envelope() {
+        return new LoudnessEnvelope(BEGIN, 100, new byte[]{LoudnessEnvelope.SILENCE, -60, -20, -40, -3});
+    }
+
+    private static List<File> absolute(List<File> files) {
+        List<File> list = new ArrayList<>();
+        for (File file : files) {
+            list.add(file.getAbsoluteFile());
+        }
+        list.sort(null);
+        return list;
+    }
+
+    @Test
+    public void writtenEnvelopeIsReadBack() {
+        LoudnessEnvelope envelope = envelope();
+        File file = new File(folder.getRoot(), "1.mp4" + LoudnessEnvelope.SIDECAR_EXTENSION);
+        envelope.write(file);
+        LoudnessEnvelope read = LoudnessEnvelope.read(file);
+        assertEquals(BEGIN, read.getBeginTime());
+        assertEquals(100, read.getInterval());
+        assertEquals(envelope.size(), read.size());
+        for (int i = 0; i < envelope.size(); i++) {
+            assertEquals(envelope.getLevel(i), read.getLevel(i));
+        }
+        // The part file is moved over the sidecar.
+        assertEquals(Collections.singletonList(file.getName()), Arrays.asList(folder.getRoot().list()));
+    }
+
+    @Test
+    public void emptyEnvelopeIsReadBack() {
+        File file = new File(folder.getRoot(), "empty" + LoudnessEnvelope.SIDECAR_EXTENSION);
+        new LoudnessEnvelope(BEGIN, 250, new byte[0]).write(file);
+        LoudnessEnvelope read = LoudnessEnvelope.read(file);
+        assertEquals(0, read.size());
+        assertEquals(250, read.getInterval());
+        assertEquals(LoudnessEnvelope.SILENCE, read.getMaxLevel(BEGIN, BEGIN + 1000));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void readRejectsOtherFile() throws IOException {
+        File file = folder.newFile("other" + LoudnessEnvelope.SIDECAR_EXTENSION);
+        Files.write(file.toPath(), new byte[]{0, 1, 2, 3, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0});
+        LoudnessEnvelope.read(file);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void readRejectsTruncatedFile() throws IOException {
+        File file = new File(folder.getRoot(), "truncated" + LoudnessEnvelope.SIDECAR_EXTENSION);
+        envelope().write(file);
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - 2));
+        LoudnessEnvelope.read(file);
+    }
+
+    @Test
+    public void maxLevelCoversOverlappingIntervals() {
+        LoudnessEnvelope envelope = envelope();
+        assertEquals(-3, envelope.getMaxLevel(BEGIN - 1000, BEGIN + 10_000));
+        assertEquals(-20, envelope.getMaxLevel(BEGIN + 150, BEGIN + 399));
+        assertEquals(-60, envelope.getMaxLevel(BEGIN + 100, BEGIN + 199));
+        assertEquals(LoudnessEnvelope.SILENCE, envelope.getMaxLevel(BEGIN, BEGIN + 99));
+        assertEquals(LoudnessEnvelope.SILENCE, envelope.getMaxLevel(BEGIN + 500, BEGIN + 1000));
+        assertEquals(LoudnessEnvelope.SILENCE, envelope.getMaxLevel(BEGIN - 1000, BEGIN - 1));
+    }
+
+    @Test
+    public void louderIntervalsAreFound() {
+        LoudnessEnvelope envelope = envelope();
+        assertArrayEquals(new long[]{BEGIN + 200, BEGIN + 400}, envelope.findLouderThan(-40));
+        assertArrayEquals(new long[]{BEGIN + 100, BEGIN + 200, BEGIN + 300, BEGIN + 400}, envelope.findLouderThan(-127));
+        assertArrayEquals(new long[0], envelope.findLouderThan(0));
+    }
+
+    @Test
+    public void levelOfMeanSquare() {
+        double fullScale = 32768.0 * 32768.0;
+        assertEquals(LoudnessEnvelope.SILENCE, LoudnessEnvelope.level(0));
+        assertEquals(0, LoudnessEnvelope.level(fullScale));
+        assertEquals(0, LoudnessEnvelope.level(4 * fullScale));
+        // Full scale sine.
+        assertEquals(-3, LoudnessEnvelope.level(fullScale / 2));
+        assertEquals(-60, LoudnessEnvelope.level(fullScale / 1e6));
+        assertEquals(-127, LoudnessEnvelope.level(1e-9));
+    }
+
+    @Test
+    public void loudSegmentsAreFoundBySidecars() throws IOException {
+        File dir = folder.newFolder("segments");
+        File loud = new File(dir, "loud.mp4");
+        File quiet = new File(dir, "quiet.mp4");
+        File later = new File(dir, "later.mp4");
+        envelope().write(LoudnessEnvelope.sidecarOf(loud));
+        new LoudnessEnvelope(BEGIN, 100, new byte[]{-70, -50, -45}).write(LoudnessEnvelope.sidecarOf(quiet));
+        new LoudnessEnvelope(BEGIN + 60_000, 100, new byte[]{-1}).write(LoudnessEnvelope.sidecarOf(later));
+        Files.write(LoudnessEnvelope.sidecarOf(new File(dir, "broken.mp4")).toPath(), new byte[]{1, 2});
+
+        assertEquals(Collections.singletonList(loud.getAbsoluteFile()),
+                absolute(LoudnessEnvelope.findLoudSegments(dir, BEGIN, BEGIN + 1000, -30)));
+        assertEquals(absolute(Arrays.asList(loud, quiet)),
+                absolute(LoudnessEnvelope.findLoudSegments(dir, BEGIN, BEGIN + 1000, -55)));
+        assertEquals(Collections.singletonList(later.getAbsoluteFile()),
+                absolute(LoudnessEnvelope.findLoudSegments(dir, BEGIN + 60_000, BEGIN + 61_000, -30)));
+        assertEquals(Collections.emptyList(),
+                LoudnessEnvelope.findLoudSegments(dir, BEGIN + 2000, BEGIN + 50_000, -127));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroInterval() {
+        new LoudnessEnvelope(BEGIN, 0, new byte[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNullLevels() {
+        new LoudnessEnvelope(BEGIN, 100, null);
+    }
+}
@@ -0,0 +1,238 @@
+package recorder.sampler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import recorder.common.MediaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SampleDispatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService pool;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        pool = Executors.newFixedThreadPool(8);
+        file = folder.newFile("1000.mp4");
+        Files.write(file.toPath(), new byte[]{1});
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param number Begin second, identifies the sample.
+     */
+    private Sample sample(int number) {
+        return new Sample("test/1.0", new Date(number * 1000L), "mp4", file, 1000, 1, MediaType.VIDEO);
+    }
+
+    private static int number(Sample sample) {
+        return (int) (sample.getBeginTime() / 1000);
+    }
+
+    private static List<Integer> range(int count) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    @Test
+    public void handlesSamplesOfEachLaneInOrder() throws InterruptedException {
+        SampleDispatcher dispatcher = new SampleDispatcher(3, pool);
+        int lanes = 6;
+        int samples = 100;
+        List<List<Integer>> orders = new ArrayList<>();
+        List<SampleDispatcher.SampleLane> laneList = new ArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(lanes * samples);
+        List<Thread> producers = new ArrayList<>();
+        for (int l = 0; l < lanes; l++) {
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            orders.add(order);
+            SampleDispatcher.SampleLane lane = dispatcher.newLane("camera-" + l, 4);
+            laneList.add(lane);
+            SampleHandler handler = sample -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                order.add(number(sample));
+                running.decrementAndGet();
+                done.countDown();
+            };
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < samples; i++) {
+                    lane.dispatch(handler, sample(i));
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (Thread producer : producers) {
+            producer.join(5000);
+        }
+        for (int l = 0; l < lanes; l++) {
+            assertEquals(range(samples), orders.get(l));
+            assertEquals(samples, laneList.get(l).getHandledSamples());
+            assertTrue(laneList.get(l).getMaxDepth() <= 4);
+        }
+        assertTrue(maxRunning.get() <= 3);
+        assertEquals(lanes * samples, dispatcher.getDispatchedSamples());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getHandledSamples() < lanes * samples && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(lanes * samples, dispatcher.getHandledSamples());
+        assertEquals(0, dispatcher.getFailedSamples());
+    }
+
+    @Test
+    public void lanesTakeTurnsOnBusyWorker() throws InterruptedException {
+        SampleDispatcher dispatcher = new SampleDispatcher(1, pool);
+        SampleDispatcher.SampleLane first = dispatcher.newLane("first");
+        SampleDispatcher.SampleLane second = dispatcher.newLane("second");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        SampleHandler firstHandler = sample -> {
+            if (number(sample) == 0) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            order.add("a" + number(sample));
+            done.countDown();
+        };
+        SampleHandler secondHandler = sample -> {
+            order.add("b" + number(sample));
+            done.countDown();
+        };
+        first.dispatch(firstHandler, sample(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        first.dispatch(firstHandler, sample(1));
+        first.dispatch(firstHandler, sample(2));
+        for (int i = 0; i < 3; i++) {
+            second.dispatch(secondHandler, sample(i));
+        }
+        assertEquals(1, dispatcher.getActiveWorkers());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a0", "b0", "a1", "b1", "a2", "b2"), order);
+    }
+
+    @Test
+    public void failedSamplesAreCountedAndLaneGoesOn() throws InterruptedException {
+        SampleDispatcher dispatcher = new SampleDispatcher(2, pool);
+        SampleDispatcher.SampleLane lane = dispatcher.newLane("camera");
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(6);
+        SampleHandler handler = sample -> {
+            try {
+                order.add(number(sample));
+                if (number(sample) == 1) {
+                    throw new RuntimeException("Expected by the test.");
+                }
+                if (number(sample) == 3) {
+                    throw new AssertionError("Expected by the test.");
+                }
+            } finally {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 6; i++) {
+            lane.dispatch(handler, sample(i));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lane.getHandledSamples() < 6 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(range(6), order);
+        assertEquals(6, lane.getHandledSamples());
+        assertEquals(2, lane.getFailedSamples());
+        assertEquals(2, dispatcher.getFailedSamples());
+    }
+
+    @Test
+    public void fullLaneBlocksProducer() throws InterruptedException {
+        SampleDispatcher dispatcher = new SampleDispatcher(1, pool);
+        SampleDispatcher.SampleLane lane = dispatcher.newLane("camera", 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        SampleHandler handler = sample -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            order.add(number(sample));
+            done.countDown();
+        };
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 4; i++) {
+                lane.dispatch(handler, sample(i));
+            }
+        });
+        producer.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // The first sample is being handled, two wait in the lane and the fourth can't be queued.
+        awaitWaiting(producer);
+        assertEquals(2, lane.getDepth());
+        release.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(range(4), order);
+        assertEquals(2, lane.getMaxDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroWorkers() {
+        new SampleDispatcher(0, pool);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroLaneCapacity() {
+        new SampleDispatcher(1, pool).newLane("camera", 0);
+    }
+}